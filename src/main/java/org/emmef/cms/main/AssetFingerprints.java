@@ -0,0 +1,175 @@
+package org.emmef.cms.main;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.emmef.cms.page.PageRecord;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Names assets after a hash of their content, so they can be cached forever.
+ * <p>
+ * Assets are identified by their path relative to the source root, with forward slashes, where links to them are
+ * percent-decoded. The fingerprinted copy is written next to the original, that is kept for links from outside
+ * the site.
+ */
+@Slf4j
+public class AssetFingerprints {
+    private static final int HASH_LENGTH = 10;
+
+    private final ImmutableMap<String, String> fingerprinted;
+    private final ImmutableMap<String, Path> files;
+
+    private AssetFingerprints(ImmutableMap<String, String> fingerprinted, ImmutableMap<String, Path> files) {
+        this.fingerprinted = fingerprinted;
+        this.files = files;
+    }
+
+    /**
+     * Fingerprints the files that are referenced from the pages and the stylesheet and script that every page uses.
+     */
+    public static AssetFingerprints create(@NonNull Collection<SourceFile> files, @NonNull Collection<PageRecord> pages) {
+        Set<String> referenced = ConcurrentHashMap.newKeySet();
+        referenced.add(normalize(PageRecord.STYLE_CSS));
+        referenced.add(normalize(PageRecord.EMMEF_UTIL_JS));
+        pages.parallelStream().forEach((page) -> page.visitRelativeLinks((url) -> {
+            String path = assetPath("", url);
+            if (path != null) {
+                referenced.add(path);
+            }
+        }));
+
+        Map<String, String> result = new ConcurrentHashMap<>();
+        Map<String, Path> sources = new ConcurrentHashMap<>();
+        files.parallelStream().forEach((file) -> {
+            String path = normalize(file.getRelativePath());
+            if (path != null && referenced.contains(path)) {
+                try {
+                    result.put(path, fingerprintedName(path, MoreFiles.asByteSource(file.getPath()).hash(Hashing.sha256()).toString()));
+                    sources.put(path, file.getPath());
+                } catch (IOException e) {
+                    log.warn("Cannot fingerprint {}: {}", file, e.getMessage());
+                }
+            }
+        });
+        for (String asset : Arrays.asList(PageRecord.STYLE_CSS, PageRecord.EMMEF_UTIL_JS)) {
+            if (!result.containsKey(normalize(asset))) {
+                log.warn("Asset {} not found in source: cannot fingerprint", asset);
+            }
+        }
+        log.info("Fingerprinted {} assets", result.size());
+        return new AssetFingerprints(ImmutableMap.copyOf(new TreeMap<>(result)), ImmutableMap.copyOf(sources));
+    }
+
+    /**
+     * Returns the fingerprinted path for an asset path, percent-encoded, or the path itself if the asset was not
+     * fingerprinted.
+     */
+    public String getPath(@NonNull String path) {
+        String fingerprint = lookup(path);
+        if (fingerprint == null) {
+            return path;
+        }
+        return path.startsWith(PageRecord.ROOT_PREFIX) ? PageRecord.ROOT_PREFIX + encode(fingerprint) : encode(fingerprint);
+    }
+
+    /**
+     * Replaces the path of the URL by its fingerprinted path, keeping query and fragment.
+     */
+    public String rewrite(@NonNull String url) {
+        String path = pathOf(url);
+        if (lookup(path) == null) {
+            return url;
+        }
+        return getPath(path) + url.substring(path.length());
+    }
+
+    public void copy(@NonNull OutputSink sink) {
+        fingerprinted.forEach((path, fingerprint) -> {
+            try {
+                sink.copy(files.get(path), fingerprint);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private String lookup(String path) {
+        String normalized = assetPath("", path);
+        return normalized != null ? fingerprinted.get(normalized) : null;
+    }
+
+    private static String fingerprintedName(String path, String hash) {
+        int slash = path.lastIndexOf('/');
+        int dot = path.lastIndexOf('.');
+        String fingerprint = hash.substring(0, HASH_LENGTH);
+        if (dot <= slash + 1) {
+            return path + "." + fingerprint;
+        }
+        return path.substring(0, dot) + "." + fingerprint + path.substring(dot);
+    }
+
+    /**
+     * Returns the path of the asset that a relative URL in a file in {@code directory} refers to, without query
+     * and fragment, percent-decoded and normalized, or {@code null} if it is not a path within the source root.
+     */
+    static String assetPath(String directory, String url) {
+        return normalize(directory + decode(pathOf(url)));
+    }
+
+    static String pathOf(String url) {
+        int end = url.length();
+        int query = url.indexOf('?');
+        int fragment = url.indexOf('#');
+        if (query != -1) {
+            end = query;
+        }
+        if (fragment != -1 && fragment < end) {
+            end = fragment;
+        }
+        return url.substring(0, end);
+    }
+
+    static String normalize(String path) {
+        if (path.isEmpty()) {
+            return null;
+        }
+        try {
+            String normalized = Paths.get(path).normalize().toString().replace('\\', '/');
+            return normalized.isEmpty() || normalized.startsWith("..") ? null : normalized;
+        }
+        catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    private static String decode(String path) {
+        try {
+            String decoded = new URI(path).getPath();
+            return decoded != null ? decoded : path;
+        }
+        catch (URISyntaxException e) {
+            return path;
+        }
+    }
+
+    /**
+     * Returns the path percent-encoded for use in a URL, or the path itself if it cannot be.
+     */
+    static String encode(String path) {
+        try {
+            return new URI(null, null, path, null).getRawPath();
+        }
+        catch (URISyntaxException e) {
+            return path;
+        }
+    }
+}
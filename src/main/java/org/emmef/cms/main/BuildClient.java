@@ -0,0 +1,63 @@
+package org.emmef.cms.main;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Submits a build to a running {@link BuildDaemon} and exits with its result.
+ * <p>
+ * Arguments are those of {@link Main}, where relative paths are relative to the working directory of the client.
+ * The argument {@code --stop} stops the daemon instead. The daemon file is taken from the environment variable
+ * {@code SCMS_DAEMON_FILE} if it is set. The daemon reads environment variables of parameters from the request
+ * instead of its own environment, so the client always sends {@code SOURCE_DATE_EPOCH}, or that it is not set.
+ */
+public class BuildClient {
+    public static final String DAEMON_FILE_VARIABLE = "SCMS_DAEMON_FILE";
+
+    public static void main(String arg[]) throws IOException {
+        String daemonFileName = System.getenv(DAEMON_FILE_VARIABLE);
+        Path daemonFile = FileSystems.getDefault().getPath(daemonFileName != null ? daemonFileName : BuildDaemon.defaultDaemonFile());
+        if (!Files.exists(daemonFile)) {
+            System.err.println("No build daemon: " + daemonFile + " does not exist");
+            System.exit(2);
+        }
+        String[] daemon = new String(Files.readAllBytes(daemonFile), StandardCharsets.UTF_8).trim().split(" ");
+        boolean stop = arg.length == 1 && "--stop".equals(arg[0]);
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(daemon[0]))) {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            output.writeUTF(daemon[1]);
+            if (stop) {
+                output.writeUTF(BuildDaemon.STOP);
+            }
+            else {
+                output.writeUTF(BuildDaemon.BUILD);
+                output.writeUTF(FileSystems.getDefault().getPath("").toAbsolutePath().toString());
+                output.writeInt(BuildDaemon.ENVIRONMENT_VARIABLES.size());
+                for (String variable : BuildDaemon.ENVIRONMENT_VARIABLES) {
+                    String value = System.getenv(variable);
+                    output.writeUTF(variable);
+                    output.writeBoolean(value != null);
+                    if (value != null) {
+                        output.writeUTF(value);
+                    }
+                }
+                output.writeInt(arg.length);
+                for (String argument : arg) {
+                    output.writeUTF(argument);
+                }
+            }
+            output.flush();
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            int status = input.readInt();
+            String message = input.readUTF();
+            (status == BuildDaemon.OK ? System.out : System.err).println(message);
+            System.exit(status);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.emmef.cms.main;
+
+import com.google.common.collect.ImmutableList;
+import lombok.extern.slf4j.Slf4j;
+import org.emmef.cms.parameters.ExtraArgumentStrategy;
+import org.emmef.cms.parameters.Parameter;
+import org.emmef.cms.parameters.ParameterReader;
+import org.emmef.cms.parameters.ParameterResults;
+import org.emmef.cms.util.Environment;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resident process that runs builds for {@link BuildClient}, so that builds do not pay for starting the JVM and
+ * warming up its code, and that unchanged sources of a site are not parsed again. Only the parsed documents are
+ * kept, see {@link DocumentCache}: every build still reads all sources and builds its pages, site tree and
+ * summaries. A build that failed to write any file is reported as failed.
+ * <p>
+ * The daemon listens on the loopback interface only and writes its port and a random token to the daemon file,
+ * that only its owner can read. A client must present the token, so other users on the machine cannot make it
+ * write files. Requests are handled one at a time, in the order they arrive.
+ */
+@Slf4j
+public class BuildDaemon {
+    public static final Parameter DAEMON_FILE = Parameter.single("daemon-file").withDescription("File with the port and token of the build daemon").withDefault(defaultDaemonFile());
+    public static final Parameter PORT = Parameter.single("port").withDescription("Loopback port to listen on, where 0 picks a free port").withDefault("0");
+
+    /**
+     * Environment variables of parameters, that the client sends with each build.
+     */
+    static final ImmutableList<String> ENVIRONMENT_VARIABLES = ImmutableList.<Parameter>builder()
+            .add(Main.SOURCE, Main.TARGET, Main.COPYRIGHT).addAll(Main.OPTION_PARAMETERS).build().stream()
+            .map(Parameter::getEnvironmentVariable)
+            .filter(Objects::nonNull)
+            .collect(ImmutableList.toImmutableList());
+    static final String BUILD = "build";
+    static final String STOP = "stop";
+    static final int OK = 0;
+    static final int FAILED = 1;
+    private static final int REQUEST_TIMEOUT_MILLIS = 10_000;
+
+    private final Map<Path, DocumentCache> documentCaches = new ConcurrentHashMap<>();
+    private final ServerSocket server;
+    private final String token;
+
+    public static void main(String arg[]) throws IOException {
+        ParameterResults results = new ParameterReader(ExtraArgumentStrategy.ALLOW_BOTH, DAEMON_FILE, PORT).read(arg);
+        Path daemonFile = FileSystems.getDefault().getPath(results.getValue(DAEMON_FILE));
+        BuildDaemon daemon = new BuildDaemon(Integer.parseInt(results.getValue(PORT)));
+        daemon.writeDaemonFile(daemonFile);
+        try {
+            daemon.run();
+        }
+        finally {
+            Files.deleteIfExists(daemonFile);
+        }
+    }
+
+    private BuildDaemon(int port) throws IOException {
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        StringBuilder token = new StringBuilder();
+        for (byte b : random) {
+            token.append(String.format("%02x", b & 0xff));
+        }
+        this.token = token.toString();
+    }
+
+    private void writeDaemonFile(Path daemonFile) throws IOException {
+        Path temporary = daemonFile.resolveSibling(daemonFile.getFileName() + ".tmp");
+        Files.deleteIfExists(temporary);
+        Files.createFile(temporary, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        Files.write(temporary, (server.getLocalPort() + " " + token + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, daemonFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Build daemon listening on {}:{}", server.getInetAddress().getHostAddress(), server.getLocalPort());
+    }
+
+    private void run() throws IOException {
+        try (ServerSocket server = this.server) {
+            while (true) {
+                try (Socket socket = server.accept()) {
+                    socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+                    if (!handle(socket)) {
+                        log.info("Build daemon stopped");
+                        return;
+                    }
+                } catch (SocketTimeoutException e) {
+                    log.warn("Build request timed out");
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles a request and returns whether the daemon should continue.
+     */
+    private boolean handle(Socket socket) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        if (!MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), input.readUTF().getBytes(StandardCharsets.UTF_8))) {
+            log.warn("Build request with wrong token");
+            reply(output, FAILED, "Wrong token");
+            return true;
+        }
+        String command = input.readUTF();
+        if (STOP.equals(command)) {
+            reply(output, OK, "Stopped");
+            return false;
+        }
+        if (!BUILD.equals(command)) {
+            reply(output, FAILED, "Unknown command: " + command);
+            return true;
+        }
+        Path workingDirectory = FileSystems.getDefault().getPath(input.readUTF());
+        // Options of a build come from its client only, never from the environment the daemon was started in
+        Environment.Builder environment = Environment.builder();
+        int variables = input.readInt();
+        for (int i = 0; i < variables; i++) {
+            String variable = input.readUTF();
+            if (input.readBoolean()) {
+                environment.with(variable, input.readUTF());
+            }
+        }
+        String[] arguments = new String[input.readInt()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = input.readUTF();
+        }
+        socket.setSoTimeout(0);
+
+        long start = System.nanoTime();
+        try {
+            new Main(workingDirectory, (source) -> documentCaches.computeIfAbsent(source, (key) -> new DocumentCache()), environment.build())
+                    .generatePages(arguments);
+            reply(output, OK, String.format("Built in %d ms", (System.nanoTime() - start) / 1_000_000));
+        } catch (Exception e) {
+            log.error("Build failed", e);
+            reply(output, FAILED, "Build failed: " + e);
+        }
+        return true;
+    }
+
+    private static void reply(DataOutputStream output, int status, String message) throws IOException {
+        output.writeInt(status);
+        output.writeUTF(message);
+        output.flush();
+    }
+
+    static String defaultDaemonFile() {
+        return FileSystems.getDefault().getPath(System.getProperty("user.home"), ".simple-static-cms-daemon").toString();
+    }
+}
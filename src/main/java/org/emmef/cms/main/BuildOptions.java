@@ -0,0 +1,129 @@
+package org.emmef.cms.main;
+
+import com.google.common.collect.ImmutableList;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.With;
+import org.emmef.cms.page.OutputLayout;
+
+import java.nio.file.Path;
+
+@Getter
+@With
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class BuildOptions {
+    public static final BuildOptions DEFAULT = new BuildOptions(
+            null,
+            Pages.DEFAULT_SOURCE_DEPTH,
+            OutputLayout.FLAT,
+            false,
+            null,
+            false,
+            false,
+            false,
+            false,
+            false,
+            null,
+            false,
+            ImmutableList.of(),
+            null,
+            false,
+            null,
+            0,
+            false,
+            0,
+            null,
+            null,
+            0);
+
+    private final String copyRight;
+    /**
+     * Directory levels to read pages from, where a negative value means unlimited.
+     */
+    private final int sourceDepth;
+    @NonNull
+    private final OutputLayout layout;
+    /**
+     * Produces byte-identical output for identical sources, taking dates from page content only.
+     */
+    private final boolean reproducible;
+    /**
+     * Seconds since the epoch for pages without any date in reproducible builds, or {@code null}
+     * to use the most recent date found in the pages.
+     */
+    private final Long sourceDateEpoch;
+    /**
+     * Writes pages without pretty-printing, insignificant whitespace, optional closing tags and redundant quotes.
+     */
+    private final boolean minify;
+    /**
+     * Leaves redundant classes out of the navigation links, keeping those the default stylesheet uses.
+     */
+    private final boolean compactNavigation;
+    /**
+     * Inlines the stylesheet rules that apply to each page and loads the complete stylesheet without blocking.
+     */
+    private final boolean criticalCss;
+    /**
+     * Adds loading hints, defers scripts and loads article images and frames lazily.
+     */
+    private final boolean optimizeLoading;
+    /**
+     * Adds dimensions to article images and creates downscaled variants of large ones.
+     */
+    private final boolean images;
+    /**
+     * Directory to cache image information and variants in, or {@code null} for a directory next to the target.
+     * Building into a sink rather than a target needs this directory for images.
+     */
+    private final Path imageCache;
+    /**
+     * Copies only the files that are reachable from the pages and their stylesheets.
+     */
+    private final boolean pruneAssets;
+    /**
+     * Directories or archives that provide the files that the source root does not have, in order of precedence.
+     */
+    @NonNull
+    private final ImmutableList<Path> sourceOverlays;
+    /**
+     * Absolute URL of the site root, needed to write a sitemap and feeds, or {@code null} to write neither.
+     */
+    private final String siteUrl;
+    /**
+     * Writes a full-text search index, with a script that queries it.
+     */
+    private final boolean searchIndex;
+    /**
+     * Directory to cache the terms of pages and related articles in, or {@code null} for a directory next to the target.
+     */
+    private final Path searchCache;
+    /**
+     * Number of related articles to list on each page, where zero means none.
+     */
+    private final int relatedArticles;
+    /**
+     * Writes long sibling lists to navigation files that pages with the same siblings share and load with a script.
+     */
+    private final boolean sharedNavigation;
+    /**
+     * Maximum number of children or siblings in the navigation of a page, where longer lists show a window
+     * and link to a paginated index, or zero for no maximum.
+     */
+    private final int navigationLimit;
+    /**
+     * Keeps parsed sources between builds in the same process, or {@code null} to parse all sources.
+     */
+    private final DocumentCache documentCache;
+    /**
+     * Plan of a sharded build, to render only the pages of one shard, or {@code null} to render all pages.
+     */
+    private final ShardPlan shardPlan;
+    /**
+     * Number of generations to keep when writing to a new directory and publishing it by pointing the target
+     * link at it, or zero to write into the target.
+     */
+    private final int generations;
+}
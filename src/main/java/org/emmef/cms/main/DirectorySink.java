@@ -0,0 +1,61 @@
+package org.emmef.cms.main;
+
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes the site to a directory on the file system.
+ */
+public class DirectorySink implements OutputSink {
+    private final Path target;
+
+    public DirectorySink(@NonNull Path target) {
+        this.target = target;
+    }
+
+    @Override
+    public void write(@NonNull String path, @NonNull String content) throws IOException {
+        Path destination = destination(path);
+        Files.write(destination, content.getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(destination, Pages.ATTRIBUTES);
+    }
+
+    @Override
+    public void copy(@NonNull Path file, @NonNull String path) throws IOException {
+        Path destination = destination(path);
+        Files.copy(file, destination, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+        Files.setPosixFilePermissions(destination, Pages.ATTRIBUTES);
+    }
+
+    @Override
+    public OutputStream open(@NonNull String path) throws IOException {
+        Path destination = destination(path);
+        OutputStream output = Files.newOutputStream(destination);
+        Files.setPosixFilePermissions(destination, Pages.ATTRIBUTES);
+        return output;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private Path destination(String path) throws IOException {
+        Path destination = target.resolve(OutputSink.relative(path));
+        Path dir = destination.getParent();
+        if (!Files.exists(dir)) {
+            Files.createDirectories(dir);
+        }
+        return destination;
+    }
+
+    @Override
+    public String toString() {
+        return target.toString();
+    }
+}
@@ -0,0 +1,72 @@
+package org.emmef.cms.main;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Reads the source from a directory, that is scanned once, together with the file attributes.
+ */
+@Slf4j
+public class DirectorySource extends ScannedSource {
+    private final Path root;
+
+    public DirectorySource(@NonNull Path root) throws IOException {
+        super(scan(root));
+        this.root = root;
+        log.info("Scanned {} files in {}", getFiles().size(), root);
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    static List<SourceFile> scan(Path root) throws IOException {
+        List<SourceFile> files = new ArrayList<>();
+        Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(root) && SourceProvider.isIgnored(name(dir))) {
+                    log.info("Ignore directory: {}", name(dir));
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (SourceProvider.isIgnored(name(file))) {
+                    log.info("Ignore file: {}", name(file));
+                }
+                else if (attrs.isRegularFile()) {
+                    String relative = root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+                    files.add(new SourceFile(relative, file, root, attrs.creationTime(), attrs.lastModifiedTime(), attrs.size()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                log.warn("Cannot read {}: {}", file, e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    private static String name(Path path) {
+        Path name = path.getFileName();
+        return name != null ? name.toString().replace("/", "") : "";
+    }
+
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+}
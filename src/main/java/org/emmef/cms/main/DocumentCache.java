@@ -0,0 +1,88 @@
+package org.emmef.cms.main;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parsed source documents that a process keeps between builds of a site, so that unchanged sources are not
+ * parsed again.
+ * <p>
+ * A source is unchanged if its content has the same hash, which is much cheaper than parsing it. Pages change
+ * the document they are read from, so every build gets a copy. Documents of sources that a build did not read
+ * are dropped when reading finished.
+ * <p>
+ * Only parsing is saved: every source is still read and hashed, and the pages, their metadata and the site tree
+ * are built from the copies on every build, as building them changes them.
+ */
+@Slf4j
+public class DocumentCache {
+    private final Map<String, Entry> documents = new ConcurrentHashMap<>();
+    private final AtomicInteger parsed = new AtomicInteger();
+    private final AtomicInteger reused = new AtomicInteger();
+    private volatile int generation = 0;
+
+    /**
+     * Starts reading the sources of a build.
+     */
+    public void startBuild() {
+        generation++;
+        parsed.set(0);
+        reused.set(0);
+    }
+
+    /**
+     * Drops the documents of sources that were not read since the build started.
+     */
+    public void finishBuild() {
+        int current = generation;
+        documents.values().removeIf((entry) -> entry.generation != current);
+        log.info("Parsed {} sources and reused {}, keeping {}", parsed.get(), reused.get(), documents.size());
+    }
+
+    /**
+     * Returns a copy of the parsed document of the source.
+     */
+    public Document read(@NonNull SourceFile file) throws IOException {
+        byte[] content;
+        try (InputStream input = Files.newInputStream(file.getPath())) {
+            content = ByteStreams.toByteArray(input);
+        }
+        HashCode hash = Hashing.murmur3_128().hashBytes(content);
+        String key = file.getPath().toUri().toString();
+        Entry entry = documents.get(key);
+        if (entry == null || !entry.hash.equals(hash)) {
+            entry = new Entry(hash, Jsoup.parse(new ByteArrayInputStream(content), "UTF-8", ""));
+            documents.put(key, entry);
+            parsed.incrementAndGet();
+        }
+        else {
+            reused.incrementAndGet();
+        }
+        entry.generation = generation;
+        return entry.document.clone();
+    }
+
+    private static class Entry {
+        private final HashCode hash;
+        private final Document document;
+        private volatile int generation;
+
+        Entry(HashCode hash, Document document) {
+            this.hash = hash;
+            this.document = document;
+        }
+    }
+}
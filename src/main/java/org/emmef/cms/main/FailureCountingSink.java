@@ -0,0 +1,124 @@
+package org.emmef.cms.main;
+
+import lombok.NonNull;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the writes to another sink that fail, as the build reports failed writes without stopping, while a
+ * build that lost files must not be reported as successful.
+ */
+public class FailureCountingSink implements OutputSink {
+    private final OutputSink sink;
+    private final AtomicInteger failed = new AtomicInteger();
+
+    public FailureCountingSink(@NonNull OutputSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Returns the number of writes, copies and streams that failed.
+     */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public void write(@NonNull String path, @NonNull String content) throws IOException {
+        try {
+            sink.write(path, content);
+        }
+        catch (IOException e) {
+            throw failed(e);
+        }
+    }
+
+    @Override
+    public void copy(@NonNull Path file, @NonNull String path) throws IOException {
+        try {
+            sink.copy(file, path);
+        }
+        catch (IOException e) {
+            throw failed(e);
+        }
+    }
+
+    @Override
+    public OutputStream open(@NonNull String path) throws IOException {
+        OutputStream stream;
+        try {
+            stream = sink.open(path);
+        }
+        catch (IOException e) {
+            throw failed(e);
+        }
+        return new FilterOutputStream(stream) {
+            private boolean counted = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    out.write(b);
+                }
+                catch (IOException e) {
+                    throw failedWrite(e);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    out.write(b, off, len);
+                }
+                catch (IOException e) {
+                    throw failedWrite(e);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                }
+                catch (IOException e) {
+                    throw failedWrite(e);
+                }
+            }
+
+            /**
+             * Counts a stream once, however many of its calls fail.
+             */
+            private IOException failedWrite(IOException e) {
+                if (counted) {
+                    return e;
+                }
+                counted = true;
+                return failed(e);
+            }
+        };
+    }
+
+    @Override
+    public void publish() throws IOException {
+        sink.publish();
+    }
+
+    @Override
+    public void close() throws IOException {
+        sink.close();
+    }
+
+    private IOException failed(IOException e) {
+        failed.incrementAndGet();
+        return e;
+    }
+
+    @Override
+    public String toString() {
+        return sink.toString();
+    }
+}
@@ -0,0 +1,322 @@
+package org.emmef.cms.main;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.emmef.cms.page.PageRecord;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads the dimensions of the images in articles and creates downscaled variants of large images.
+ * <p>
+ * Results are cached by content hash and format, in a directory outside of the target, so unchanged images are
+ * only read and scaled once. Cached results whose variants no longer exist are created again. Images get width
+ * and height attributes and, if variants exist, a srcset.
+ */
+@Slf4j
+public class ImageVariants {
+    private static final int[] WIDTHS = { 480, 960, 1600 };
+    private static final Set<String> SCALABLE = new HashSet<>(Arrays.asList("jpg", "jpeg", "png"));
+    private static final int HASH_LENGTH = 10;
+
+    private final ImmutableMap<String, ImageInfo> images;
+    private final Path cache;
+
+    private ImageVariants(ImmutableMap<String, ImageInfo> images, Path cache) {
+        this.images = images;
+        this.cache = cache;
+    }
+
+    /**
+     * Reads the images that are referenced from the articles of the pages, in parallel.
+     */
+    public static ImageVariants create(@NonNull SourceProvider source, @NonNull Path cache, @NonNull Collection<PageRecord> pages) {
+        Set<String> referenced = ConcurrentHashMap.newKeySet();
+        pages.parallelStream().forEach((page) -> page.updateArticleImages((image) -> {
+            String path = AssetFingerprints.assetPath("", image.attr("src"));
+            if (path != null && !PageRecord.URL_SCHEME_PATTERN.matcher(path).find()) {
+                referenced.add(path);
+            }
+        }));
+        try {
+            Files.createDirectories(cache);
+        } catch (IOException e) {
+            log.error("Cannot create image cache {}: {}", cache, e.getMessage());
+            return new ImageVariants(ImmutableMap.of(), cache);
+        }
+
+        Map<String, Path> files = new ConcurrentHashMap<>();
+        Map<String, String> hashes = new ConcurrentHashMap<>();
+        referenced.parallelStream().forEach((path) -> {
+            Path file = source.resolve(path);
+            if (file != null) {
+                try {
+                    hashes.put(path, MoreFiles.asByteSource(file).hash(Hashing.sha256()).toString());
+                    files.put(path, file);
+                } catch (IOException e) {
+                    log.warn("Cannot read image {}: {}", file, e.getMessage());
+                }
+            }
+        });
+        // Images with the same content and format share their cache files, so each is read and scaled by one thread
+        Map<String, List<String>> sameImages = new TreeMap<>();
+        new TreeSet<>(files.keySet()).forEach((path) -> sameImages
+                .computeIfAbsent(hashes.get(path) + "." + formatOf(extensionOf(files.get(path))), (key) -> new ArrayList<>())
+                .add(path));
+        Map<String, ImageInfo> result = new ConcurrentHashMap<>();
+        sameImages.values().parallelStream().forEach((paths) -> {
+            ImageInfo info = readImage(files.get(paths.get(0)), hashes.get(paths.get(0)), cache);
+            if (info != null) {
+                paths.forEach((path) -> result.put(path, info.withExtension(extensionOf(files.get(path)))));
+            }
+        });
+        log.info("Read {} images, {} with variants", result.size(), result.values().stream().filter((info) -> !info.widths.isEmpty()).count());
+        return new ImageVariants(ImmutableMap.copyOf(new TreeMap<>(result)), cache);
+    }
+
+    /**
+     * Adds dimensions and variants to the images in the articles of the pages, unless already specified.
+     */
+    public void apply(@NonNull Collection<PageRecord> pages) {
+        pages.forEach((page) -> page.updateArticleImages((image) -> {
+            String src = image.attr("src");
+            String path = AssetFingerprints.assetPath("", src);
+            ImageInfo info = path != null ? images.get(path) : null;
+            if (info == null) {
+                return;
+            }
+            if (!image.hasAttr("width") && !image.hasAttr("height")) {
+                image.attr("width", Integer.toString(info.width));
+                image.attr("height", Integer.toString(info.height));
+            }
+            if (!info.widths.isEmpty() && !image.hasAttr("srcset")) {
+                StringBuilder sources = new StringBuilder();
+                String directory = parentOf(src);
+                for (int width : info.widths) {
+                    sources.append(directory).append(AssetFingerprints.encode(variantName(path, info, width))).append(' ').append(width).append("w, ");
+                }
+                sources.append(src).append(' ').append(info.width).append('w');
+                image.attr("srcset", sources.toString());
+                if (!image.hasAttr("sizes")) {
+                    image.attr("sizes", "(max-width: " + info.width + "px) 100vw, " + info.width + "px");
+                }
+            }
+        }));
+    }
+
+    /**
+     * Copies the variants from the cache to the sink, next to their originals.
+     */
+    public void copy(@NonNull OutputSink sink) {
+        images.forEach((path, info) -> {
+            for (int width : info.widths) {
+                try {
+                    sink.copy(cache.resolve(cachedName(info.hash, width, formatOf(info.extension))), parentOf(path) + variantName(path, info, width));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    private static ImageInfo readImage(Path file, String hash, Path cache) {
+        String extension = extensionOf(file);
+        String format = formatOf(extension);
+        Path properties = cache.resolve(hash + "." + format + ".properties");
+        if (Files.exists(properties)) {
+            try (InputStream input = Files.newInputStream(properties)) {
+                Properties cached = new Properties();
+                cached.load(input);
+                ImageInfo info = ImageInfo.fromProperties(hash, extension, cached);
+                if (info.widths.stream().allMatch((width) -> Files.isRegularFile(cache.resolve(cachedName(hash, width, format))))) {
+                    return info;
+                }
+                log.warn("Variants of image {} are missing from the cache: creating them again", file);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Ignoring cached information for image {}: {}", file, e.getMessage());
+            }
+        }
+
+        ImageInfo info = SCALABLE.contains(extension) ? scale(file, cache, hash, extension) : readDimensions(file, hash, extension);
+        if (info != null) {
+            try (OutputStream output = Files.newOutputStream(properties)) {
+                info.toProperties().store(output, file.getFileName().toString());
+            } catch (IOException e) {
+                log.warn("Cannot cache information for image {}: {}", file, e.getMessage());
+            }
+        }
+        return info;
+    }
+
+    private static ImageInfo readDimensions(Path file, String hash, String extension) {
+        try (InputStream stream = Files.newInputStream(file);
+             ImageInputStream input = ImageIO.createImageInputStream(stream)) {
+            Iterator<ImageReader> readers = input != null ? ImageIO.getImageReaders(input) : Collections.emptyIterator();
+            if (!readers.hasNext()) {
+                log.debug("Not an image that can be read: {}", file);
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return new ImageInfo(hash, extension, reader.getWidth(0), reader.getHeight(0), ImmutableList.of());
+            }
+            finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            log.warn("Cannot read image {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    private static ImageInfo scale(Path file, Path cache, String hash, String extension) {
+        ImageInfo dimensions = readDimensions(file, hash, extension);
+        if (dimensions == null || dimensions.width <= WIDTHS[0]) {
+            return dimensions;
+        }
+        BufferedImage original;
+        try (InputStream stream = Files.newInputStream(file)) {
+            original = ImageIO.read(stream);
+        } catch (IOException e) {
+            log.warn("Cannot read image {}: {}", file, e.getMessage());
+            return dimensions;
+        }
+        if (original == null) {
+            return dimensions;
+        }
+        ImmutableList.Builder<Integer> widths = ImmutableList.builder();
+        String format = formatOf(extension);
+        for (int width : WIDTHS) {
+            if (width >= original.getWidth()) {
+                break;
+            }
+            int height = Math.max(1, (int)Math.round((double)original.getHeight() * width / original.getWidth()));
+            try {
+                if (!ImageIO.write(downscale(original, width, height, "png".equals(format)), format, cache.resolve(cachedName(hash, width, format)).toFile())) {
+                    log.warn("No writer for image format {}", format);
+                    break;
+                }
+                widths.add(width);
+            } catch (IOException e) {
+                log.warn("Cannot write variant of image {}: {}", file, e.getMessage());
+            }
+        }
+        log.info("Created variants of image {}", file);
+        return new ImageInfo(hash, extension, original.getWidth(), original.getHeight(), widths.build());
+    }
+
+    /**
+     * Scales down in steps of at most a factor two, so bilinear interpolation takes all pixels into account.
+     */
+    private static BufferedImage downscale(BufferedImage image, int width, int height, boolean alpha) {
+        BufferedImage current = image;
+        int currentWidth = image.getWidth();
+        int currentHeight = image.getHeight();
+        do {
+            currentWidth = Math.max(width, currentWidth / 2);
+            currentHeight = currentWidth == width ? height : Math.max(height, currentHeight / 2);
+            BufferedImage scaled = new BufferedImage(currentWidth, currentHeight, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = scaled.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                graphics.drawImage(current, 0, 0, currentWidth, currentHeight, null);
+            }
+            finally {
+                graphics.dispose();
+            }
+            current = scaled;
+        }
+        while (currentWidth > width);
+        return current;
+    }
+
+    private static String extensionOf(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot != -1 ? name.substring(dot + 1).toLowerCase() : "";
+    }
+
+    /**
+     * Returns the format that variants of images with the extension are written in, so that the same content with
+     * extensions of the same format, like jpg and jpeg, shares its cached variants.
+     */
+    private static String formatOf(String extension) {
+        return "jpeg".equals(extension) ? "jpg" : extension;
+    }
+
+    private static String cachedName(String hash, int width, String format) {
+        return hash + "-" + width + "w." + format;
+    }
+
+    private static String variantName(String path, ImageInfo info, int width) {
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        return base + "." + info.hash.substring(0, HASH_LENGTH) + "-" + width + "w." + info.extension;
+    }
+
+    private static String parentOf(String src) {
+        String path = AssetFingerprints.pathOf(src);
+        return path.substring(0, path.lastIndexOf('/') + 1);
+    }
+
+    private static class ImageInfo {
+        private final String hash;
+        private final String extension;
+        private final int width;
+        private final int height;
+        private final ImmutableList<Integer> widths;
+
+        ImageInfo(String hash, String extension, int width, int height, ImmutableList<Integer> widths) {
+            this.hash = hash;
+            this.extension = extension;
+            this.width = width;
+            this.height = height;
+            this.widths = widths;
+        }
+
+        ImageInfo withExtension(String extension) {
+            return extension.equals(this.extension) ? this : new ImageInfo(hash, extension, width, height, widths);
+        }
+
+        static ImageInfo fromProperties(String hash, String extension, Properties properties) {
+            ImmutableList.Builder<Integer> widths = ImmutableList.builder();
+            for (String width : properties.getProperty("variants", "").split(",")) {
+                if (!width.isEmpty()) {
+                    widths.add(Integer.parseInt(width));
+                }
+            }
+            return new ImageInfo(hash, extension,
+                    Integer.parseInt(properties.getProperty("width")),
+                    Integer.parseInt(properties.getProperty("height")),
+                    widths.build());
+        }
+
+        Properties toProperties() {
+            Properties properties = new Properties();
+            properties.setProperty("width", Integer.toString(width));
+            properties.setProperty("height", Integer.toString(height));
+            StringBuilder variants = new StringBuilder();
+            widths.forEach((width) -> variants.append(variants.length() > 0 ? "," : "").append(width));
+            properties.setProperty("variants", variants.toString());
+            return properties;
+        }
+    }
+}
@@ -1,29 +1,98 @@
 package org.emmef.cms.main;
 
+import com.google.common.collect.ImmutableList;
+import lombok.Getter;
+import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
+import org.emmef.cms.page.OutputLayout;
 import org.emmef.cms.parameters.ExtraArgumentStrategy;
 import org.emmef.cms.parameters.Parameter;
 import org.emmef.cms.parameters.ParameterReader;
 import org.emmef.cms.parameters.ParameterResults;
+import org.emmef.cms.util.Environment;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.util.function.Function;
+import java.util.regex.Pattern;
 
 @Slf4j
 public class Main {
     public static final Parameter HELP = Parameter.flag("help");
     public static final Parameter SOURCE = Parameter.single("source-root").withDescription("Contains the sources to generate pages from").mandatory().withShorthand("S");
-    public static final Parameter TARGET = Parameter.single("target").withDescription("The output directory of pages").mandatory().withShorthand("T");
+    public static final Parameter TARGET = Parameter.single("target").withDescription("The output directory of pages, or a .zip or .jar archive").mandatory().withShorthand("T");
     public static final Parameter COPYRIGHT = Parameter.single("copyright").withDescription("Copyright holder").withShorthand("C");
+    public static final Parameter SOURCE_DEPTH = Parameter.single("source-depth").withDescription("Directory levels to read pages from, negative for unlimited").withDefault(Integer.toString(Pages.DEFAULT_SOURCE_DEPTH)).withShorthand("D");
+    public static final Parameter REPRODUCIBLE = Parameter.flag("reproducible").withDescription("Produce identical output for identical sources, using only dates from page content");
+    public static final Parameter SOURCE_DATE_EPOCH = Parameter.single("source-date-epoch").withDescription("Date in seconds since the epoch for pages without dates in reproducible builds").withEnvironmentVariable("SOURCE_DATE_EPOCH");
+    public static final Parameter MINIFY = Parameter.flag("minify").withDescription("Write pages without insignificant whitespace, optional closing tags and redundant quotes");
+    public static final Parameter COMPACT_NAVIGATION = Parameter.flag("compact-navigation").withDescription("Leave redundant classes out of navigation links");
+    public static final Parameter CRITICAL_CSS = Parameter.flag("critical-css").withDescription("Inline the stylesheet rules each page uses and load the stylesheet without blocking");
+    public static final Parameter OPTIMIZE_LOADING = Parameter.flag("optimize-loading").withDescription("Add loading hints, defer scripts and load article images lazily");
+    public static final Parameter IMAGES = Parameter.flag("images").withDescription("Add dimensions to article images and create smaller variants of large ones");
+    public static final Parameter IMAGE_CACHE = Parameter.single("image-cache").withDescription("Directory to cache image information and variants in");
+    public static final Parameter PRUNE_ASSETS = Parameter.flag("prune-assets").withDescription("Copy only files that pages or their stylesheets refer to");
+    public static final Parameter SOURCE_OVERLAY = Parameter.single("source-overlay").withDescription("Directories or archives, separated by " + File.pathSeparator + ", that provide files missing from the source root");
+    public static final Parameter SITE_URL = Parameter.single("site-url").withDescription("Absolute URL of the site, to write sitemap.xml and Atom feeds");
+    public static final Parameter SEARCH_INDEX = Parameter.flag("search-index").withDescription("Write a full-text search index with a script that queries it");
+    public static final Parameter SEARCH_CACHE = Parameter.single("search-cache").withDescription("Directory to cache the terms of pages and related articles in, so that only changed pages are processed again");
+    public static final Parameter RELATED_ARTICLES = Parameter.single("related-articles").withDescription("Number of related articles to list on each page").withDefault("0");
+    public static final Parameter SHARED_NAVIGATION = Parameter.flag("shared-navigation").withDescription("Write long sibling lists to shared navigation files that pages load, instead of into every page");
+    public static final Parameter GENERATIONS = Parameter.single("generations").withDescription("Build into a new directory next to the target, that must be a symbolic link, publish it by pointing the link at it and keep this many, or 0 to write into the target").withDefault("0");
+    public static final Parameter NAVIGATION_LIMIT = Parameter.single("navigation-limit").withDescription("Maximum number of children or siblings in navigation, where longer lists link to an index, or 0 for no maximum").withDefault("0");
+    public static final Parameter OUTPUT_LAYOUT = Parameter.single("output-layout").withDescription("Output layout: flat or hierarchical").withDefault("flat").withShorthand("L");
+
+    /**
+     * Parameters of the build options, that do not depend on the site.
+     */
+    public static final ImmutableList<Parameter> OPTION_PARAMETERS = ImmutableList.of(
+            SOURCE_DEPTH,
+            OUTPUT_LAYOUT,
+            REPRODUCIBLE,
+            SOURCE_DATE_EPOCH,
+            MINIFY,
+            COMPACT_NAVIGATION,
+            CRITICAL_CSS,
+            OPTIMIZE_LOADING,
+            IMAGES,
+            IMAGE_CACHE,
+            PRUNE_ASSETS,
+            SOURCE_OVERLAY,
+            SITE_URL,
+            SEARCH_INDEX,
+            SEARCH_CACHE,
+            RELATED_ARTICLES,
+            SHARED_NAVIGATION,
+            NAVIGATION_LIMIT,
+            GENERATIONS);
 
     ParameterReader parameterReader = new ParameterReader(ExtraArgumentStrategy.ALLOW_BOTH,
-            HELP,
-            SOURCE,
-            TARGET,
-            COPYRIGHT);
+            ImmutableList.<Parameter>builder().add(HELP, SOURCE, TARGET, COPYRIGHT).addAll(OPTION_PARAMETERS).build());
+
+    @Getter
+    private final Path workingDirectory;
+    private final Function<Path, DocumentCache> documentCaches;
+    private final Environment environment;
+
+    public Main() {
+        this(FileSystems.getDefault().getPath(""), (source) -> null, Environment.SYSTEM_ENVIRONMENT);
+    }
+
+    /**
+     * Creates a command that resolves relative paths against {@code workingDirectory}, keeps parsed sources in
+     * the cache that {@code documentCaches} returns for the source root, if any, and reads the environment
+     * variables of parameters from {@code environment}.
+     */
+    public Main(@NonNull Path workingDirectory, @NonNull Function<Path, DocumentCache> documentCaches, @NonNull Environment environment) {
+        this.workingDirectory = workingDirectory;
+        this.documentCaches = documentCaches;
+        this.environment = environment;
+    }
 
     public static void main(String arg[]) throws IOException {
         new Main().generatePages(arg);
@@ -34,18 +103,90 @@ public class Main {
     }
 
     public void generatePages(String[] arg) throws IOException {
-        ParameterResults results = parameterReader.read(arg);
+        ParameterResults results = parameterReader.read(arg, Environment.SYSTEM_PROPERTIES, environment);
 
         onParameterResults(results);
 
-        Path source = FileSystems.getDefault().getPath(results.getValue(SOURCE));
-        Path target = FileSystems.getDefault().getPath(results.getValue(TARGET));
-        String copyRight = results.getValue(COPYRIGHT);
+        Path source = workingDirectory.resolve(results.getValue(SOURCE));
+        Path target = workingDirectory.resolve(results.getValue(TARGET));
+        build(source, target, readOptions(results).withCopyRight(results.getValue(COPYRIGHT)));
+    }
+
+    /**
+     * Reads the build options of {@link #OPTION_PARAMETERS} from the results.
+     */
+    public BuildOptions readOptions(@NonNull ParameterResults results) {
+        BuildOptions options = BuildOptions.DEFAULT
+                .withSourceDepth(Integer.parseInt(results.getValue(SOURCE_DEPTH)))
+                .withLayout(OutputLayout.valueOf(results.getValue(OUTPUT_LAYOUT).toUpperCase()))
+                .withReproducible(results.isSet(REPRODUCIBLE))
+                .withMinify(results.isSet(MINIFY))
+                .withCompactNavigation(results.isSet(COMPACT_NAVIGATION))
+                .withCriticalCss(results.isSet(CRITICAL_CSS))
+                .withOptimizeLoading(results.isSet(OPTIMIZE_LOADING))
+                .withImages(results.isSet(IMAGES))
+                .withPruneAssets(results.isSet(PRUNE_ASSETS))
+                .withSearchIndex(results.isSet(SEARCH_INDEX))
+                .withRelatedArticles(Integer.parseInt(results.getValue(RELATED_ARTICLES)))
+                .withSharedNavigation(results.isSet(SHARED_NAVIGATION))
+                .withNavigationLimit(Integer.parseInt(results.getValue(NAVIGATION_LIMIT)))
+                .withGenerations(Integer.parseInt(results.getValue(GENERATIONS)));
+        String sourceDateEpoch = results.getValue(SOURCE_DATE_EPOCH);
+        if (sourceDateEpoch != null) {
+            options = options.withSourceDateEpoch(Long.parseLong(sourceDateEpoch.trim()));
+        }
+        String sourceOverlay = results.getValue(SOURCE_OVERLAY);
+        if (sourceOverlay != null) {
+            ImmutableList.Builder<Path> overlays = ImmutableList.builder();
+            for (String overlay : sourceOverlay.split(Pattern.quote(File.pathSeparator))) {
+                if (!overlay.trim().isEmpty()) {
+                    overlays.add(workingDirectory.resolve(overlay.trim()));
+                }
+            }
+            options = options.withSourceOverlays(overlays.build());
+        }
+        String siteUrl = results.getValue(SITE_URL);
+        if (siteUrl != null) {
+            options = options.withSiteUrl(SiteFeeds.siteUrl(siteUrl));
+        }
+        String searchCache = results.getValue(SEARCH_CACHE);
+        if (searchCache != null) {
+            options = options.withSearchCache(workingDirectory.resolve(searchCache));
+        }
+        String imageCache = results.getValue(IMAGE_CACHE);
+        if (imageCache != null) {
+            options = options.withImageCache(workingDirectory.resolve(imageCache));
+        }
+        return options;
+    }
+
+    /**
+     * Checks the source and target and builds the site.
+     */
+    public void build(@NonNull Path source, @NonNull Path target, @NonNull BuildOptions options) throws IOException {
+        options = options.withDocumentCache(documentCaches.apply(source.toAbsolutePath().normalize()));
 
-        if (!Files.exists(source) || !Files.isDirectory(source)) {
-            throw new IllegalArgumentException("Source directory not exist: " + source.toString());
+        for (Path root : ImmutableList.<Path>builder().add(source).addAll(options.getSourceOverlays()).build()) {
+            if (!Files.exists(root)) {
+                throw new IllegalArgumentException("Source directory not exist: " + root.toString());
+            }
+        }
+        String targetName = target.getFileName().toString().toLowerCase();
+        if (options.getGenerations() > 0) {
+            if (targetName.endsWith(".zip") || targetName.endsWith(".jar")) {
+                throw new IllegalArgumentException("Generations need a directory target: " + target.toString());
+            }
+            if (Files.exists(target, LinkOption.NOFOLLOW_LINKS) && !Files.isSymbolicLink(target)) {
+                throw new IllegalArgumentException("Target of generations must be a symbolic link: " + target.toString());
+            }
+        }
+        else if (targetName.endsWith(".zip") || targetName.endsWith(".jar")) {
+            Path dir = target.toAbsolutePath().getParent();
+            if (!Files.isDirectory(dir) || !Files.isWritable(dir)) {
+                throw new IllegalArgumentException("Target archive must be in a writable directory: " + target.toString());
+            }
         }
-        if (Files.exists(target)) {
+        else if (Files.exists(target)) {
             if (!Files.isDirectory(target) || !Files.isWritable(target)) {
                 throw new IllegalArgumentException("Target must be a writable directory: " + source.toString());
             }
@@ -54,6 +195,6 @@ public class Main {
             Files.createDirectory(target, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwxr-xr-x")));
         }
 
-        Pages.readSourceGenerateOutput(source, target, copyRight);
+        Pages.readSourceGenerateOutput(source, target, options);
     }
 }
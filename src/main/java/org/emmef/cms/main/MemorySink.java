@@ -0,0 +1,65 @@
+package org.emmef.cms.main;
+
+import com.google.common.collect.ImmutableSortedMap;
+import lombok.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the site in memory, to measure or inspect generation without writing to disk.
+ */
+public class MemorySink implements OutputSink {
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+
+    @Override
+    public void write(@NonNull String path, @NonNull String content) {
+        files.put(OutputSink.relative(path), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void copy(@NonNull Path file, @NonNull String path) throws IOException {
+        files.put(OutputSink.relative(path), Files.readAllBytes(file));
+    }
+
+    @Override
+    public OutputStream open(@NonNull String path) {
+        return new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                files.put(OutputSink.relative(path), toByteArray());
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public byte[] getContent(@NonNull String path) {
+        return files.get(OutputSink.relative(path));
+    }
+
+    /**
+     * Returns the paths of all files with their sizes, sorted by path.
+     */
+    public Map<String, Integer> getSizes() {
+        ImmutableSortedMap.Builder<String, Integer> sizes = ImmutableSortedMap.naturalOrder();
+        files.forEach((path, content) -> sizes.put(path, content.length));
+        return sizes.build();
+    }
+
+    public long getTotalSize() {
+        return files.values().stream().mapToLong((content) -> content.length).sum();
+    }
+
+    public int size() {
+        return files.size();
+    }
+}
@@ -0,0 +1,117 @@
+package org.emmef.cms.main;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.emmef.cms.parameters.ExtraArgumentStrategy;
+import org.emmef.cms.parameters.Parameter;
+import org.emmef.cms.parameters.ParameterReader;
+import org.emmef.cms.parameters.ParameterResults;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Builds several sites concurrently in one process, with the options of {@link Main} applied to all of them.
+ * <p>
+ * Sites are given as source, target and copyright triples, where a copyright of {@code -} means none. Every
+ * site is built in a task of one pool of {@code --threads} workers, that also runs the parallel parts of the
+ * builds, as parallel streams run in the pool of the task that starts them. So the builds share the cores
+ * without using more threads than the pool has, and idle workers take parallel work from whichever site has it.
+ * Builds share no state, except that cache directories contain a directory per site.
+ * <p>
+ * Sites are not scheduled fairly. A build holds its worker from start to end and most of it runs on that worker
+ * alone, so with more sites than workers, sites wait for a worker in the order they are given, and a long build
+ * does not make way for the others.
+ */
+@Slf4j
+public class MultiSiteBuild {
+    public static final Parameter SITES = Parameter.multiple("sites", 3, Integer.MAX_VALUE).withDescription("Source, target and copyright of every site, where copyright - means none").mandatory();
+    public static final Parameter THREADS = Parameter.single("threads").withDescription("Number of workers that all builds share").withDefault(Integer.toString(Runtime.getRuntime().availableProcessors()));
+    private static final String NO_COPYRIGHT = "-";
+
+    private final Main main;
+
+    public MultiSiteBuild(@NonNull Main main) {
+        this.main = main;
+    }
+
+    public static void main(String arg[]) throws IOException {
+        int failed = new MultiSiteBuild(new Main()).build(arg);
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Builds all sites and returns the number of builds that failed.
+     */
+    public int build(String[] arg) {
+        ParameterResults results = new ParameterReader(ExtraArgumentStrategy.ALLOW_BOTH,
+                ImmutableList.<Parameter>builder().add(SITES, THREADS).addAll(Main.OPTION_PARAMETERS).build()).read(arg);
+        List<String> sites = results.getValues(SITES);
+        if (sites.size() % 3 != 0) {
+            throw new IllegalArgumentException(SITES.getNameKey() + ": expected source, target and copyright of every site, got " + sites.size() + " values");
+        }
+        int threads = Integer.parseInt(results.getValue(THREADS));
+        if (threads < 1) {
+            throw new IllegalArgumentException(THREADS.getNameKey() + ": must be positive: " + threads);
+        }
+        BuildOptions options = main.readOptions(results);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<Future<Long>> builds = new ArrayList<>();
+            for (int site = 0; site < sites.size(); site += 3) {
+                Path source = main.getWorkingDirectory().resolve(sites.get(site));
+                Path target = main.getWorkingDirectory().resolve(sites.get(site + 1));
+                String copyright = sites.get(site + 2);
+                BuildOptions siteOptions = forSite(options, target).withCopyRight(NO_COPYRIGHT.equals(copyright) ? null : copyright);
+                builds.add(pool.submit(() -> {
+                    long start = System.nanoTime();
+                    main.build(source, target, siteOptions);
+                    return (System.nanoTime() - start) / 1_000_000;
+                }));
+            }
+            int failed = 0;
+            for (int site = 0; site < builds.size(); site++) {
+                String source = sites.get(3 * site);
+                try {
+                    log.info("Built {} in {} ms", source, builds.get(site).get());
+                } catch (ExecutionException e) {
+                    log.error("Build of " + source + " failed", e.getCause());
+                    failed++;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while building " + source, e);
+                }
+            }
+            log.info("Built {} of {} sites with {} workers", builds.size() - failed, builds.size(), threads);
+            return failed;
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Gives the site a directory of its own in the cache directories, named after its target.
+     */
+    private static BuildOptions forSite(BuildOptions options, Path target) {
+        String name = Hashing.murmur3_128().hashString(target.toAbsolutePath().normalize().toString(), StandardCharsets.UTF_8).toString().substring(0, 16);
+        if (options.getImageCache() != null) {
+            options = options.withImageCache(options.getImageCache().resolve(name));
+        }
+        if (options.getSearchCache() != null) {
+            options = options.withSearchCache(options.getSearchCache().resolve(name));
+        }
+        return options;
+    }
+}
@@ -0,0 +1,60 @@
+package org.emmef.cms.main;
+
+import lombok.NonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Destination of the generated site. Paths are relative to the root of the site, use forward slashes
+ * and may start with {@code ./}. Writing a path that was written before replaces it, except in a
+ * {@link ZipSink}, where it fails, so a build should write each path once.
+ */
+public interface OutputSink extends Closeable {
+    /**
+     * Writes text to the file with the given path, encoded as UTF-8.
+     */
+    void write(@NonNull String path, @NonNull String content) throws IOException;
+
+    /**
+     * Copies a file to the given path.
+     */
+    void copy(@NonNull Path file, @NonNull String path) throws IOException;
+
+    /**
+     * Opens a stream that writes to the file with the given path, for content that is too large to build
+     * in memory. Nothing else may be written to the sink until the stream is closed.
+     */
+    OutputStream open(@NonNull String path) throws IOException;
+
+    /**
+     * Makes what was written visible, once the site was written completely. Sinks that write in place do nothing.
+     */
+    default void publish() throws IOException {
+    }
+
+    /**
+     * Creates a sink that writes to a ZIP archive if the target name ends with {@code .zip} or {@code .jar},
+     * or to a directory otherwise.
+     *
+     * @param entryTime modification time for all archive entries, or {@code null} to use the actual times.
+     */
+    static OutputSink forTarget(@NonNull Path target, FileTime entryTime) throws IOException {
+        String name = target.getFileName().toString().toLowerCase();
+        if (name.endsWith(".zip") || name.endsWith(".jar")) {
+            return new ZipSink(target, entryTime);
+        }
+        return new DirectorySink(target);
+    }
+
+    static String relative(@NonNull String path) {
+        String relative = path;
+        while (relative.startsWith("./")) {
+            relative = relative.substring(2);
+        }
+        return relative;
+    }
+}
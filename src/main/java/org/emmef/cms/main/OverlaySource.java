@@ -0,0 +1,54 @@
+package org.emmef.cms.main;
+
+import com.google.common.collect.ImmutableList;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Combines sources, where a file in an earlier source hides the file with the same path in later sources.
+ */
+@Slf4j
+public class OverlaySource extends ScannedSource {
+    private final ImmutableList<SourceProvider> layers;
+
+    public OverlaySource(@NonNull List<SourceProvider> layers) {
+        super(merge(layers));
+        this.layers = ImmutableList.copyOf(layers);
+    }
+
+    private static Collection<SourceFile> merge(List<SourceProvider> layers) {
+        Map<String, SourceFile> files = new HashMap<>();
+        for (SourceProvider layer : layers) {
+            for (SourceFile file : layer.getFiles()) {
+                SourceFile hiding = files.putIfAbsent(file.getRelativePath(), file);
+                if (hiding != null) {
+                    log.debug("File {} hides {}", hiding, file);
+                }
+            }
+        }
+        return files.values();
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (SourceProvider layer : layers) {
+            try {
+                layer.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return layers.toString();
+    }
+}
@@ -1,118 +1,335 @@
 package org.emmef.cms.main;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
+import org.emmef.cms.page.Backlinks;
+import org.emmef.cms.page.ChildIndexPages;
+import org.emmef.cms.page.FileDates;
+import org.emmef.cms.page.NavigationFragments;
+import org.emmef.cms.page.OutputLayout;
 import org.emmef.cms.page.PageException;
 import org.emmef.cms.page.PageRecord;
+import org.emmef.cms.page.SiteTree;
+import org.emmef.cms.page.SlugRegistry;
+import org.emmef.cms.page.StyleSheet;
+import org.emmef.cms.page.TagPages;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 
 @Slf4j
 public class Pages {
     private static final Pattern HTML_PATTERN = Pattern.compile("\\.html?$", Pattern.CASE_INSENSITIVE);
     public static final Set<PosixFilePermission> ATTRIBUTES = PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwxr-xr-x")).value();
+    public static final int DEFAULT_SOURCE_DEPTH = 3;
+    /**
+     * Earliest time that ZIP archives can represent without extensions, 1980-01-01T00:00:00Z.
+     */
+    private static final long REPRODUCIBLE_ENTRY_TIME = 315532800000L;
 
     public static Pages readSourceGenerateOutput(@NonNull Path source, @NonNull Path target, String copyRight) throws IOException {
-        Map<UUID, PageRecord> collectedPages = new HashMap<>();
-        Map<UUID, PageRecord> duplicatePages = new HashMap<>();
-        List<Path> toCopy = new ArrayList<>();
+        return readSourceGenerateOutput(source, target, BuildOptions.DEFAULT.withCopyRight(copyRight));
+    }
 
-        collectPages(source, source, collectedPages, duplicatePages, toCopy, 3);
+    public static Pages readSourceGenerateOutput(@NonNull Path source, @NonNull Path target, @NonNull BuildOptions options) throws IOException {
+        BuildOptions targetOptions = options;
+        if (options.isImages() && options.getImageCache() == null) {
+            targetOptions = targetOptions.withImageCache(nextToTarget(target, ".image-cache"));
+        }
+        if ((options.isSearchIndex() || options.getRelatedArticles() > 0) && options.getSearchCache() == null) {
+            targetOptions = targetOptions.withSearchCache(nextToTarget(target, ".search-cache"));
+        }
+        FileTime entryTime = null;
+        if (options.isReproducible()) {
+            entryTime = options.getSourceDateEpoch() != null ?
+                    FileTime.from(options.getSourceDateEpoch(), TimeUnit.SECONDS) : FileTime.fromMillis(REPRODUCIBLE_ENTRY_TIME);
+        }
+        try (SourceProvider sources = openSources(source, options.getSourceOverlays());
+             FailureCountingSink sink = new FailureCountingSink(options.getGenerations() > 0 ?
+                     StagedSink.open(target, options.getGenerations()) : OutputSink.forTarget(target, entryTime))) {
+            Pages pages = readSourceGenerateOutput(sources, sink, targetOptions);
+            if (sink.getFailed() > 0) {
+                throw new IOException("Failed to write " + sink.getFailed() + " files to " + target);
+            }
+            sink.publish();
+            return pages;
+        }
+    }
 
-        createHierarchy(collectedPages);
+    public static Pages readSourceGenerateOutput(@NonNull SourceProvider source, @NonNull OutputSink sink, @NonNull BuildOptions options) throws IOException {
+        Map<UUID, PageRecord> collectedPages = new LinkedHashMap<>();
+        Map<UUID, PageRecord> duplicatePages = new LinkedHashMap<>();
+        List<SourceFile> toCopy = new ArrayList<>();
+        FileDates dates = options.isReproducible() ? FileDates.NONE : source;
+        ShardPlan shard = options.getShardPlan();
+        if (shard != null && (options.isSearchIndex() || options.getRelatedArticles() > 0)) {
+            throw new IllegalArgumentException("Search index and related articles need the text of all pages: cannot build them in shards");
+        }
+        if (options.isImages() && options.getImageCache() == null) {
+            throw new IllegalArgumentException("Images need an image cache to keep their variants in");
+        }
+        OutputSink output = shard != null ? shard.record(sink) : sink;
+        OutputSink shared = shard != null ? shard.shared() : output;
+
+        DocumentCache documents = options.getDocumentCache();
+        if (documents != null) {
+            documents.startBuild();
+        }
+        PageReader reader = (file) -> documents != null ?
+                new PageRecord(documents.read(file), file.getPath(), file.getRoot(), dates) : readFile(file, dates);
+        collectPages(source, collectedPages, duplicatePages, toCopy, options.getSourceDepth(),
+                shard != null ? (file) -> shard.read(file, reader) : reader);
+        if (documents != null) {
+            documents.finishBuild();
+        }
+        if (options.isReproducible()) {
+            assignMissingDates(allPages(collectedPages, duplicatePages), options.getSourceDateEpoch());
+        }
+
+        SiteTree tree = createHierarchy(collectedPages);
+        log.info("Site tree contains {} pages", tree.size());
         createRootSiblings(collectedPages.values(), duplicatePages.values());
+        Backlinks backlinks = Backlinks.build(allPages(collectedPages, duplicatePages));
+        log.info("Link index contains {} links between pages", backlinks.getLinkCount());
+        backlinks.findOrphans().forEach((page) -> log.warn("Orphan: no page or navigation leads to {}", page));
+        SlugRegistry slugs = SlugRegistry.assign(tree, duplicatePages.values(), options.getLayout());
+        log.info("Assigned {} file names", slugs.size());
+        SearchIndex searchIndex = options.isSearchIndex() || options.getRelatedArticles() > 0 ?
+                createSearchIndex(collectedPages.values(), options.getSearchCache()) : null;
+        RelatedArticles related = options.getRelatedArticles() > 0 ?
+                RelatedArticles.create(searchIndex, options.getRelatedArticles(), options.getSearchCache()) : null;
+        ImageVariants images = null;
+        if (options.isImages()) {
+            images = ImageVariants.create(source, options.getImageCache(), allPages(collectedPages, duplicatePages));
+            images.apply(allPages(collectedPages, duplicatePages));
+        }
+        List<SourceFile> assets = options.isPruneAssets() ?
+                ReachableAssets.collect(source, allPages(collectedPages, duplicatePages)).filter(toCopy) : toCopy;
+        AssetFingerprints fingerprints = AssetFingerprints.create(toCopy, allPages(collectedPages, duplicatePages));
+        allPages(collectedPages, duplicatePages).forEach((page) -> page.rewriteRelativeLinks(fingerprints::rewrite));
+        if (options.getLayout() != OutputLayout.FLAT) {
+            rebaseRelativeLinks(collectedPages.values());
+            rebaseRelativeLinks(duplicatePages.values());
+        }
         List<PageRecord> orderedPages = createOrderedPages(collectedPages.values());
         replacePageReferences(collectedPages, collectedPages);
         replacePageReferences(duplicatePages, collectedPages);
 
         replaceLastArticlesReferences(collectedPages.values(), orderedPages);
+        if (related != null) {
+            replaceRelatedArticles(collectedPages, related);
+        }
+        allPages(collectedPages, duplicatePages).forEach((page) -> page.replaceBacklinks(backlinks.getBacklinks(page)));
+        TagPages tags = TagPages.create(orderedPages, slugs, options.getLayout());
+        collectedPages.values().forEach((page) -> page.replaceTags(tags::getFilename));
+        ChildIndexPages childIndex = options.getNavigationLimit() > 0 ?
+                ChildIndexPages.create(collectedPages.values(), slugs, options.getNavigationLimit(), options.getLayout()) : null;
 
-        Set<Path> collectedNames = new TreeSet<Path>();
         Map<String,Object> cache = new HashMap<>();
 
-        cache.put(PageRecord.PAGE_COPYRIGHT, copyRight);
+        cache.put(PageRecord.PAGE_COPYRIGHT, options.getCopyRight());
+        cache.put(PageRecord.ASSET_PATHS, (Function<String, String>)fingerprints::getPath);
+        cache.put(PageRecord.MINIFY, options.isMinify());
+        cache.put(PageRecord.COMPACT_NAVIGATION, options.isCompactNavigation());
+        cache.put(PageRecord.OPTIMIZE_LOADING, options.isOptimizeLoading());
+        StyleSheet styleSheet = options.isCriticalCss() ? StyleSheet.read(source::resolve, PageRecord.STYLE_CSS) : null;
+        if (styleSheet != null) {
+            cache.put(PageRecord.STYLE_SHEET, styleSheet);
+        }
+        if (options.getSiteUrl() != null) {
+            cache.put(PageRecord.FEED_PATH, SiteFeeds.SITE_FEED);
+        }
+        if (childIndex != null) {
+            cache.put(PageRecord.CHILD_INDEX, childIndex);
+        }
+        NavigationFragments navigation = options.isSharedNavigation() ? new NavigationFragments() : null;
+        if (navigation != null) {
+            cache.put(PageRecord.NAVIGATION_FRAGMENTS, navigation);
+        }
 
         collectedPages.values().forEach((page) -> {
-            generatePageOutput(target, true, page, collectedNames, cache);
+            if (shard == null || shard.isOwner(page)) {
+                generatePageOutput(output, true, page, cache, options.getLayout());
+            }
         });
         duplicatePages.values().forEach((page) -> {
-            generatePageOutput(target, false, page, collectedNames, cache);
+            if (shard == null || shard.isOwner(page)) {
+                generatePageOutput(output, false, page, cache, options.getLayout());
+            }
         });
-
-        toCopy.forEach(file -> {
-            Path relativeSource = source.relativize(file);
-            Path destination = target.resolve(relativeSource);
+        List<PageRecord> listings = new ArrayList<>(tags.getListings());
+        if (childIndex != null) {
+            listings.addAll(childIndex.getListings());
+        }
+        listings.forEach((page) -> {
+            if (shard == null || shard.isOwner(page.getDynamicFilename())) {
+                generatePageOutput(output, false, page, cache, options.getLayout());
+            }
+        });
+        if (styleSheet != null) {
+            styleSheet.reportUnused();
+        }
+        if (navigation != null) {
             try {
-                Path dir = destination.getParent();
-                if (!Files.exists(dir)) {
-                    Files.createDirectories(dir);
-                }
-                Files.copy(file, destination, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
-                Files.setPosixFilePermissions(destination, ATTRIBUTES);
+                writeNavigation(shared, navigation);
             } catch (IOException e) {
                 e.printStackTrace();
             }
-        });
+        }
+        if (options.isSearchIndex()) {
+            try {
+                searchIndex.write(output);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (options.getSiteUrl() != null && (shard == null || shard.isFirst())) {
+            SiteFeeds feeds = new SiteFeeds(options.getSiteUrl(), options.getCopyRight());
+            try {
+                feeds.writeSitemap(output, orderedPages);
+                feeds.writeFeeds(output, orderedPages);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Pruned assets are those of the pages a shard renders, so every shard copies its own
+        if (shard == null || shard.isFirst() || options.isPruneAssets()) {
+            assets.forEach(file -> {
+                try {
+                    shared.copy(file.getPath(), file.getRelativePath());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        fingerprints.copy(shared);
+        if (images != null) {
+            images.copy(shared);
+        }
+        if (shard != null) {
+            shard.writeManifest();
+        }
 
         return null;
     }
 
-    private static void generatePageOutput(@NonNull Path target, boolean createPermanentFile, @NonNull PageRecord page, Set<Path> collectedNames, Map<String, Object> cache) {
-        Path dynamicPath = target.resolve(page.getDynamicFilename());
-        Path permanentPath = target.resolve(page.getId().toString() + ".html");
-        boolean success = false;
-        if (!collectedNames.contains(dynamicPath)) {
-            try (FileWriter output = new FileWriter(dynamicPath.toFile())){
-                log.info("Wrote " + page + " to file " + dynamicPath);
-                page.writePage(output, cache);
-                success = true;
-                collectedNames.add(dynamicPath);
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Returns the path next to the target, with the name of the target followed by {@code suffix}.
+     */
+    static Path nextToTarget(Path target, String suffix) {
+        Path absolute = target.toAbsolutePath();
+        return absolute.resolveSibling(absolute.getFileName() + suffix);
+    }
+
+    static SourceProvider openSources(Path source, List<Path> overlays) throws IOException {
+        if (overlays.isEmpty()) {
+            return SourceProvider.open(source);
+        }
+        List<SourceProvider> layers = new ArrayList<>();
+        try {
+            layers.add(SourceProvider.open(source));
+            for (Path overlay : overlays) {
+                layers.add(SourceProvider.open(overlay));
             }
-            if (success) {
-                try {
-                    Files.setPosixFilePermissions(dynamicPath, ATTRIBUTES);
-                    if (createPermanentFile) {
-                        try {
-                            Files.copy(dynamicPath, permanentPath, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                    String fileName = dynamicPath.getFileName().toString();
-                    boolean index = page.isIndex();
-                    if (index && !"index.html".equalsIgnoreCase(fileName)) {
-                        try {
-                            Path resolve = target.resolve("index.html");
-                            Files.copy(dynamicPath, resolve, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
-                            Files.setPosixFilePermissions(resolve, ATTRIBUTES);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
+        }
+        catch (IOException e) {
+            for (SourceProvider layer : layers) {
+                layer.close();
+            }
+            throw e;
+        }
+        return new OverlaySource(layers);
+    }
+
+    /**
+     * Reads the page of a source file.
+     */
+    interface PageReader {
+        PageRecord read(SourceFile file) throws IOException;
+    }
+
+    private static SearchIndex createSearchIndex(Collection<PageRecord> pages, Path cache) throws IOException {
+        List<SearchIndex.Document> documents = new ArrayList<>();
+        pages.forEach((page) -> documents.add(new SearchIndex.Document(
+                page.getId().toString(), OutputSink.relative(page.getDynamicFilename()), page.getTitle(), page.getArticleText())));
+        return SearchIndex.create(documents, cache);
+    }
+
+    private static List<PageRecord> allPages(Map<UUID, PageRecord> collectedPages, Map<UUID, PageRecord> duplicatePages) {
+        List<PageRecord> pages = new ArrayList<>(collectedPages.values());
+        pages.addAll(duplicatePages.values());
+        return pages;
+    }
+
+    private static void generatePageOutput(@NonNull OutputSink sink, boolean createPermanentFile, @NonNull PageRecord page, Map<String, Object> cache, OutputLayout layout) {
+        String dynamicPath = page.getDynamicFilename();
+        String html;
+        try {
+            StringWriter output = new StringWriter();
+            page.writePage(output, cache);
+            html = output.toString();
+            sink.write(dynamicPath, html);
+            log.info("Wrote " + page + " to file " + dynamicPath + " in " + sink);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (createPermanentFile) {
+            try {
+                if (layout == OutputLayout.FLAT) {
+                    sink.write(page.getPermanentFilename(), html);
                 }
-                catch (IOException e) {
-                    e.printStackTrace();
+                else {
+                    StringWriter output = new StringWriter();
+                    page.writePermanentRedirect(output);
+                    sink.write(page.getPermanentFilename(), output.toString());
                 }
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
-        else {
-            log.error("NOT writing page \"{}\" [{}] with already existing title", page.getTitle(), page.getId());
+        if (page.isIndex() && !"./index.html".equalsIgnoreCase(dynamicPath)) {
+            try {
+                sink.write("index.html", html);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 
+    private static void writeNavigation(OutputSink sink, NavigationFragments navigation) throws IOException {
+        Map<String, String> fragments = navigation.getFragments();
+        if (fragments.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, String> fragment : fragments.entrySet()) {
+            sink.write(fragment.getKey(), fragment.getValue());
+        }
+        try (InputStream script = NavigationFragments.class.getResourceAsStream("navigation.js")) {
+            if (script == null) {
+                log.error("Navigation script not found: shared navigation written without it");
+            }
+            else {
+                sink.write(NavigationFragments.SCRIPT, new String(ByteStreams.toByteArray(script), StandardCharsets.UTF_8));
+            }
+        }
+        log.info("Wrote {} shared navigation files", fragments.size());
+    }
 
-    private static void createHierarchy(Map<UUID, PageRecord> index) {
+    private static SiteTree createHierarchy(Map<UUID, PageRecord> index) {
         index.values().forEach((page) -> {
             UUID parentId = page.getParentId();
             if (parentId != null) {
@@ -131,6 +348,7 @@ public class Pages {
                 }
             }
         });
+        return SiteTree.build(index.values());
     }
 
     private static void createRootSiblings(@NonNull Collection<PageRecord>... index) {
@@ -147,7 +365,35 @@ public class Pages {
                 }
             });
         }
-        rootPages.forEach((root) -> root.setSiblings(rootPages));
+        ImmutableList<PageRecord> siblings = ImmutableList.copyOf(rootPages);
+        rootPages.forEach((root) -> root.setSiblings(siblings));
+    }
+
+    /**
+     * Gives pages without dates the source date epoch or, if that is not set, the most recent date of any page.
+     */
+    private static void assignMissingDates(Collection<PageRecord> pages, Long sourceDateEpoch) {
+        long reference = 0;
+        if (sourceDateEpoch != null) {
+            reference = sourceDateEpoch * 1000;
+        }
+        else {
+            for (PageRecord page : pages) {
+                if (page.getTimePublished() != null) {
+                    reference = Math.max(reference, page.getTimePublished().toMillis());
+                }
+                if (page.getTimeModified() != null) {
+                    reference = Math.max(reference, page.getTimeModified().toMillis());
+                }
+            }
+        }
+        FileTime time = FileTime.fromMillis(reference);
+        pages.forEach((page) -> {
+            if (!page.hasDates()) {
+                log.info("{} has no dates: using {}", page, time);
+                page.assignMissingDates(time);
+            }
+        });
     }
 
     private static List<PageRecord> createOrderedPages(Collection<PageRecord> pages)
@@ -166,89 +412,97 @@ public class Pages {
     }
 
 
-    private static void collectPages(Path rootPath, @NonNull Path source, Map<UUID, PageRecord> collectedPages, Map<UUID, PageRecord> duplicatePages, List<Path> toCopy, int levels) throws IOException {
-        List<Path> subDirectories = new ArrayList<>();
-        AtomicReference<Boolean> hadIndex = new AtomicReference<>(Boolean.FALSE);
-        Files.list(source).forEach((file) -> {
-            if ("_.".contains(file.getFileName().toString().substring(0,1))) {
-                log.info("Ignore {}: {}", Files.isDirectory(file) ? "directory" : "file", file.getFileName());
-            }
-            else if (Files.isDirectory(file)) {
-                subDirectories.add(file);
-            }
-            else {
-                String name = file.getFileName().toString();
-
-                if (levels > 0 && HTML_PATTERN.matcher(name).find()) {
-                    try {
-                        PageRecord pageRecord = readFile(rootPath, file);
-                        UUID id = pageRecord.getId();
-                        if (collectedPages.containsKey(id)) {
-                            PageRecord duplicated = collectedPages.get(id);
-                            if (pageRecord.isIndex() && !duplicated.isIndex()) {
-                                log.warn("Duplicate id and title '{}': page \"{}\" ({}) duplicates INDEX page \"{}\" ({})",
-                                        id, duplicated.getTitle(), duplicated.getPath(), pageRecord.getTitle(), file);
-                                duplicated.markDuplicate();
-                                duplicatePages.put(id, duplicated);
-                            }
-                            else if (pageRecord.getTitle().equalsIgnoreCase(duplicated.getTitle())) {
-                                pageRecord.resetIndex();
-                                log.warn("Duplicate id and title '{}': page \"{}\" ({}) duplicates page \"{}\" ({})",
-                                        id, pageRecord.getTitle(), file, duplicated.getTitle(), duplicated.getPath());
-                                return;
-                            }
-                            else {
-                                pageRecord.resetIndex();
-                                duplicatePages.put(id, pageRecord);
-                                pageRecord.markDuplicate();
-                                log.error("Duplicate id '{}': page \"{}\" ({}) duplicates page \"{}\" ({})",
-                                        id, pageRecord.getTitle(), file, duplicated.getTitle(), duplicated.getPath());
-                                return;
-                            }
+    private static void collectPages(SourceProvider source, Map<UUID, PageRecord> collectedPages, Map<UUID, PageRecord> duplicatePages, List<SourceFile> toCopy, int levels, PageReader reader) {
+        Set<String> directoriesWithIndex = new HashSet<>();
+        // Ordered, so that duplicates and the index are found in the same order on every build
+        source.getFiles().forEach((file) -> {
+            String name = file.getName();
+
+            if (isPage(file, levels)) {
+                try {
+                    PageRecord pageRecord = reader.read(file);
+                    UUID id = pageRecord.getId();
+                    if (collectedPages.containsKey(id)) {
+                        PageRecord duplicated = collectedPages.get(id);
+                        if (pageRecord.isIndex() && !duplicated.isIndex()) {
+                            log.warn("Duplicate id and title '{}': page \"{}\" ({}) duplicates INDEX page \"{}\" ({})",
+                                    id, duplicated.getTitle(), duplicated.getPath(), pageRecord.getTitle(), file);
+                            duplicated.markDuplicate();
+                            duplicatePages.put(id, duplicated);
                         }
-                        collectedPages.put(pageRecord.getId(), pageRecord);
-                        if (pageRecord.isIndex()) {
-                            if (!hadIndex.compareAndSet(Boolean.FALSE, Boolean.TRUE)) {
-                                pageRecord.resetIndex();
-                            }
+                        else if (pageRecord.getTitle().equalsIgnoreCase(duplicated.getTitle())) {
+                            pageRecord.resetIndex();
+                            log.warn("Duplicate id and title '{}': page \"{}\" ({}) duplicates page \"{}\" ({})",
+                                    id, pageRecord.getTitle(), file, duplicated.getTitle(), duplicated.getPath());
+                            return;
+                        }
+                        else {
+                            pageRecord.resetIndex();
+                            duplicatePages.put(id, pageRecord);
+                            pageRecord.markDuplicate();
+                            log.error("Duplicate id '{}': page \"{}\" ({}) duplicates page \"{}\" ({})",
+                                    id, pageRecord.getTitle(), file, duplicated.getTitle(), duplicated.getPath());
+                            return;
                         }
                     }
-                    catch (PageException e) {
-                        log.error("Not a valid source file: " + file, e);
-                    }
-                    catch (Exception e) {
-                        e.printStackTrace();
+                    collectedPages.put(pageRecord.getId(), pageRecord);
+                    if (pageRecord.isIndex()) {
+                        String directory = file.getRelativePath().substring(0, file.getRelativePath().length() - name.length());
+                        if (!directoriesWithIndex.add(directory)) {
+                            pageRecord.resetIndex();
+                        }
                     }
                 }
-                else {
-                    toCopy.add(file);
+                catch (PageException e) {
+                    log.error("Not a valid source file: " + file, e);
                 }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            else {
+                toCopy.add(file);
             }
         });
+    }
 
-        for (Path subDir : subDirectories) {
-            collectPages(rootPath, subDir, collectedPages, duplicatePages, toCopy, Math.max(levels - 1, 0));
-        }
+    /**
+     * Returns whether the file is a page to read, rather than a file to copy.
+     */
+    static boolean isPage(SourceFile file, int levels) {
+        return (levels < 0 || file.getDepth() < levels) && HTML_PATTERN.matcher(file.getName()).find();
     }
 
     private static void replacePageReferences(Map<UUID, PageRecord> collectedPages, Map<UUID, PageRecord> index) {
         collectedPages.values().forEach((page) -> page.replacePageReferences(index));
     }
 
+    private static void rebaseRelativeLinks(Collection<PageRecord> pages) {
+        pages.forEach(PageRecord::rebaseRelativeLinks);
+    }
+
     private static void replaceLastArticlesReferences(Collection<PageRecord> pages, List<PageRecord> sortedPages) {
         pages.forEach((page) -> page.replaceLastArticlesReference(sortedPages));
     }
 
-    private static PageRecord readFile(Path rootPath, Path path) throws IOException {
-        try (InputStream fileStream = new FileInputStream(path.toFile())) {
-            return getPageRecordFromStream(rootPath, fileStream, path);
+    private static void replaceRelatedArticles(Map<UUID, PageRecord> pages, RelatedArticles related) {
+        pages.values().forEach((page) -> {
+            List<PageRecord> relatedPages = new ArrayList<>();
+            related.getRelated(page.getId().toString()).forEach((key) -> relatedPages.add(pages.get(UUID.fromString(key))));
+            page.replaceRelatedArticles(relatedPages);
+        });
+    }
+
+    static PageRecord readFile(SourceFile file, FileDates dates) throws IOException {
+        try (InputStream fileStream = Files.newInputStream(file.getPath())) {
+            return getPageRecordFromStream(fileStream, file, dates);
         }
 
     }
 
-    private static PageRecord getPageRecordFromStream(Path rootPath, InputStream fileStream, Path path) throws IOException {
+    private static PageRecord getPageRecordFromStream(InputStream fileStream, SourceFile file, FileDates dates) throws IOException {
         Document document = Jsoup.parse(fileStream, "UTF-8", "");
 
-        return new PageRecord(document, path, rootPath);
+        return new PageRecord(document, file.getPath(), file.getRoot(), dates);
     }
 }
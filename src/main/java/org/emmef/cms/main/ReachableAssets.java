@@ -0,0 +1,118 @@
+package org.emmef.cms.main;
+
+import com.google.common.collect.ImmutableSet;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.emmef.cms.page.PageRecord;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The assets that can be reached from the pages, directly or through stylesheets.
+ * <p>
+ * Links are collected while they are still relative to the source root, that is, before they are rebased
+ * or fingerprinted. Stylesheets that are reached are scanned for {@code url(...)} and {@code @import}
+ * references, until no new assets are found.
+ */
+@Slf4j
+public class ReachableAssets {
+    private static final Pattern CSS_REFERENCE = Pattern.compile(
+            "url\\(\\s*[\"']?([^\"')]+?)[\"']?\\s*\\)|@import\\s+[\"']([^\"']+)[\"']", Pattern.CASE_INSENSITIVE);
+
+    private final ImmutableSet<String> reachable;
+
+    private ReachableAssets(ImmutableSet<String> reachable) {
+        this.reachable = reachable;
+    }
+
+    public static ReachableAssets collect(@NonNull SourceProvider source, @NonNull Collection<PageRecord> pages) {
+        Set<String> found = ConcurrentHashMap.newKeySet();
+        found.add(AssetFingerprints.normalize(PageRecord.STYLE_CSS));
+        found.add(AssetFingerprints.normalize(PageRecord.EMMEF_UTIL_JS));
+        pages.parallelStream().forEach((page) -> page.visitRelativeLinks((url) -> {
+            String path = toPath("", url);
+            if (path != null) {
+                found.add(path);
+            }
+        }));
+
+        Set<String> reachable = new TreeSet<>(found);
+        Deque<String> stylesheets = new ArrayDeque<>();
+        reachable.stream().filter(ReachableAssets::isStylesheet).forEach(stylesheets::add);
+        while (!stylesheets.isEmpty()) {
+            String stylesheet = stylesheets.poll();
+            for (String path : readReferences(source, stylesheet)) {
+                if (reachable.add(path) && isStylesheet(path)) {
+                    stylesheets.add(path);
+                }
+            }
+        }
+        return new ReachableAssets(ImmutableSet.copyOf(reachable));
+    }
+
+    /**
+     * Returns the files that are reachable and reports the others with their sizes.
+     */
+    public List<SourceFile> filter(@NonNull Collection<SourceFile> files) {
+        List<SourceFile> result = new ArrayList<>();
+        long unreachableSize = 0;
+        int unreachableCount = 0;
+        for (SourceFile file : files) {
+            String path = AssetFingerprints.normalize(file.getRelativePath());
+            if (path != null && reachable.contains(path)) {
+                result.add(file);
+                continue;
+            }
+            long size = file.getSize();
+            unreachableCount++;
+            unreachableSize += size;
+            log.warn("Not copying unreachable asset {} ({} bytes)", path, size);
+        }
+        log.info("Copying {} reachable assets; left out {} unreachable assets of {} bytes in total", result.size(), unreachableCount, unreachableSize);
+        return result;
+    }
+
+    private static List<String> readReferences(SourceProvider source, String stylesheet) {
+        Path file = source.resolve(stylesheet);
+        if (file == null) {
+            log.debug("Stylesheet {} not in source", stylesheet);
+            return Collections.emptyList();
+        }
+        String css;
+        try {
+            css = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            log.debug("Cannot read stylesheet {}: {}", stylesheet, e.getMessage());
+            return Collections.emptyList();
+        }
+        String directory = stylesheet.substring(0, stylesheet.lastIndexOf('/') + 1);
+        List<String> references = new ArrayList<>();
+        Matcher matcher = CSS_REFERENCE.matcher(css);
+        while (matcher.find()) {
+            String url = matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+            String path = toPath(directory, url.trim());
+            if (path != null) {
+                references.add(path);
+            }
+        }
+        return references;
+    }
+
+    private static String toPath(String directory, String url) {
+        if (url.isEmpty() || url.startsWith("#") || url.startsWith("/") || PageRecord.URL_SCHEME_PATTERN.matcher(url).find()) {
+            return null;
+        }
+        return AssetFingerprints.assetPath(directory, url);
+    }
+
+    private static boolean isStylesheet(String path) {
+        return path.toLowerCase().endsWith(".css");
+    }
+}
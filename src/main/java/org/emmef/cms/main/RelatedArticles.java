@@ -0,0 +1,374 @@
+package org.emmef.cms.main;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * The pages that are most similar to each page, by the cosine similarity of the TF-IDF vectors of their terms.
+ * <p>
+ * Vectors are sparse: sorted term numbers with their weights. Comparing all pairs of pages would take quadratic
+ * time, so candidates are found through an inverted index instead, using only the {@value #QUERY_TERMS}
+ * heaviest terms of a page that are not too common. The best candidates by that partial score are compared
+ * exactly. Pages are compared in parallel.
+ * <p>
+ * Results are cached with the content hashes of the pages. A later build only compares pages that changed,
+ * or that had a changed or removed page among their related pages. An unchanged page is also compared again
+ * if a changed page is now more similar to it than its least similar related page, rather than adding the
+ * changed page to its results, as it might not be found as a candidate from the unchanged page. Changes in term
+ * weights caused by other pages do not invalidate cached results, so with the same weights, a later build
+ * finds the same related pages as a build without cache. {@link RelatedArticlesBenchmark} checks that.
+ */
+@Slf4j
+public class RelatedArticles {
+    public static final int QUERY_TERMS = 24;
+    /**
+     * Terms that occur in a larger fraction of the pages are not used to find candidates.
+     */
+    public static final double MAX_DOCUMENT_FREQUENCY = 0.05;
+    /**
+     * Terms that occur in at most this many pages are used to find candidates, even in small sites.
+     */
+    public static final int COMMON_TERM_MINIMUM = 50;
+    private static final int CANDIDATES_PER_RESULT = 4;
+    private static final String CACHE_FILE = "related.cache";
+    private static final int CACHE_VERSION = 1;
+
+    private final ImmutableMap<String, ImmutableList<String>> related;
+
+    private RelatedArticles(ImmutableMap<String, ImmutableList<String>> related) {
+        this.related = related;
+    }
+
+    /**
+     * Returns the keys of the pages that are related to a page, most similar first.
+     */
+    public List<String> getRelated(@NonNull String key) {
+        return related.getOrDefault(key, ImmutableList.of());
+    }
+
+    /**
+     * Finds the related pages for all documents in the index.
+     *
+     * @param count maximum number of related pages per page.
+     * @param cache directory to cache results in, or {@code null} to compare all pages.
+     */
+    public static RelatedArticles create(@NonNull SearchIndex index, int count, Path cache) throws IOException {
+        int size = index.size();
+        Vectors vectors = new Vectors(index);
+        Map<String, Integer> positions = new HashMap<>();
+        for (int document = 0; document < size; document++) {
+            positions.put(index.getKey(document), document);
+        }
+        Path cacheFile = cache != null ? cache.resolve(CACHE_FILE) : null;
+        Map<String, Cached> cached = cacheFile != null ? readCache(cacheFile, count) : Collections.emptyMap();
+
+        Set<String> changed = new HashSet<>();
+        boolean[] compare = new boolean[size];
+        for (int document = 0; document < size; document++) {
+            Cached entry = cached.get(index.getKey(document));
+            if (entry == null || !entry.hash.equals(index.getHash(document))) {
+                compare[document] = true;
+                changed.add(index.getKey(document));
+            }
+        }
+        cached.keySet().stream().filter((key) -> !positions.containsKey(key)).forEach(changed::add);
+        for (int document = 0; document < size; document++) {
+            if (!compare[document]) {
+                compare[document] = Arrays.stream(cached.get(index.getKey(document)).related).anyMatch(changed::contains);
+            }
+        }
+
+        Scored[] compared = new Scored[size];
+        ThreadLocal<float[]> accumulators = ThreadLocal.withInitial(() -> new float[size]);
+        ThreadLocal<int[]> touchedDocuments = ThreadLocal.withInitial(() -> new int[size]);
+        IntStream.range(0, size).parallel().filter((document) -> compare[document]).forEach((document) ->
+                compared[document] = vectors.findSimilar(document, count * CANDIDATES_PER_RESULT, accumulators.get(), touchedDocuments.get()));
+
+        boolean[] again = new boolean[size];
+        for (int document = 0; document < size; document++) {
+            Scored scored = compared[document];
+            // Pages with the same content as before are already in the cached results
+            if (scored == null || !changed.contains(index.getKey(document))) {
+                continue;
+            }
+            for (int i = 0; i < scored.documents.length; i++) {
+                int other = scored.documents[i];
+                if (compared[other] == null && !again[other]) {
+                    Cached entry = cached.get(index.getKey(other));
+                    again[other] = entry.related.length < count || scored.scores[i] >= entry.scores[entry.related.length - 1];
+                }
+            }
+        }
+        IntStream.range(0, size).parallel().filter((document) -> again[document]).forEach((document) ->
+                compared[document] = vectors.findSimilar(document, count * CANDIDATES_PER_RESULT, accumulators.get(), touchedDocuments.get()));
+        int comparedCount = (int) Arrays.stream(compared).filter(Objects::nonNull).count();
+
+        ImmutableMap.Builder<String, ImmutableList<String>> result = ImmutableMap.builder();
+        Map<String, Cached> updated = new LinkedHashMap<>();
+        for (int document = 0; document < size; document++) {
+            String key = index.getKey(document);
+            List<Neighbor> neighbors = new ArrayList<>();
+            if (compared[document] != null) {
+                Scored scored = compared[document];
+                for (int i = 0; i < scored.documents.length && i < count; i++) {
+                    neighbors.add(new Neighbor(scored.documents[i], scored.scores[i]));
+                }
+            }
+            else {
+                Cached entry = cached.get(key);
+                for (int i = 0; i < entry.related.length; i++) {
+                    neighbors.add(new Neighbor(positions.get(entry.related[i]), entry.scores[i]));
+                }
+            }
+            String[] relatedKeys = new String[neighbors.size()];
+            float[] scores = new float[neighbors.size()];
+            for (int i = 0; i < relatedKeys.length; i++) {
+                relatedKeys[i] = index.getKey(neighbors.get(i).document);
+                scores[i] = neighbors.get(i).score;
+            }
+            result.put(key, ImmutableList.copyOf(relatedKeys));
+            updated.put(key, new Cached(index.getHash(document), relatedKeys, scores));
+        }
+        if (cacheFile != null) {
+            writeCache(cacheFile, count, updated);
+        }
+        log.info("Related articles: compared {} of {} pages", comparedCount, size);
+        return new RelatedArticles(result.build());
+    }
+
+    /**
+     * TF-IDF vectors of all documents, with an inverted index in compressed sparse row layout: the postings of
+     * term {@code t} are at positions {@code postingStart[t]} up to {@code postingStart[t + 1]}.
+     */
+    private static class Vectors {
+        final int[][] terms;
+        final float[][] weights;
+        final int[] postingStart;
+        final int[] postingDocuments;
+        final float[] postingWeights;
+        final int maxDocumentFrequency;
+
+        Vectors(SearchIndex index) {
+            int size = index.size();
+            Map<String, Integer> numbers = new HashMap<>();
+            int[][] documentTerms = new int[size][];
+            for (int document = 0; document < size; document++) {
+                String[] names = index.getTerms(document);
+                documentTerms[document] = new int[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    documentTerms[document][i] = numbers.computeIfAbsent(names[i], (name) -> numbers.size());
+                }
+            }
+            int[] documentFrequency = new int[numbers.size()];
+            for (int[] document : documentTerms) {
+                for (int term : document) {
+                    documentFrequency[term]++;
+                }
+            }
+
+            terms = new int[size][];
+            weights = new float[size][];
+            postingStart = new int[numbers.size() + 1];
+            for (int document = 0; document < size; document++) {
+                int[] frequencies = index.getFrequencies(document);
+                // Term number and weight in one long, so that sorting by term keeps them together
+                long[] packed = new long[documentTerms[document].length];
+                int length = 0;
+                double norm = 0;
+                for (int i = 0; i < packed.length; i++) {
+                    int term = documentTerms[document][i];
+                    float weight = (float) ((1 + Math.log(frequencies[i])) * Math.log((double) size / documentFrequency[term]));
+                    if (weight > 0) {
+                        packed[length++] = ((long) term << 32) | (Float.floatToIntBits(weight) & 0xffffffffL);
+                        norm += weight * weight;
+                    }
+                }
+                Arrays.sort(packed, 0, length);
+                terms[document] = new int[length];
+                weights[document] = new float[length];
+                float scale = norm > 0 ? (float) (1 / Math.sqrt(norm)) : 0;
+                for (int i = 0; i < length; i++) {
+                    terms[document][i] = (int) (packed[i] >>> 32);
+                    weights[document][i] = Float.intBitsToFloat((int) packed[i]) * scale;
+                    postingStart[terms[document][i] + 1]++;
+                }
+            }
+            for (int term = 0; term < numbers.size(); term++) {
+                postingStart[term + 1] += postingStart[term];
+            }
+            postingDocuments = new int[postingStart[numbers.size()]];
+            postingWeights = new float[postingDocuments.length];
+            int[] next = Arrays.copyOf(postingStart, numbers.size());
+            for (int document = 0; document < size; document++) {
+                for (int i = 0; i < terms[document].length; i++) {
+                    int position = next[terms[document][i]]++;
+                    postingDocuments[position] = document;
+                    postingWeights[position] = weights[document][i];
+                }
+            }
+            maxDocumentFrequency = Math.max(COMMON_TERM_MINIMUM, (int) (size * MAX_DOCUMENT_FREQUENCY));
+        }
+
+        /**
+         * Returns the most similar documents, by their exact similarity, of the candidates with the highest
+         * partial similarity. The accumulator must contain zeroes and is left that way.
+         */
+        Scored findSimilar(int document, int candidates, float[] accumulator, int[] touched) {
+            int[] documentTerms = terms[document];
+            float[] documentWeights = weights[document];
+            long[] heaviest = new long[documentTerms.length];
+            int queryLength = 0;
+            for (int i = 0; i < documentTerms.length; i++) {
+                int frequency = postingStart[documentTerms[i] + 1] - postingStart[documentTerms[i]];
+                if (frequency > 1 && frequency <= maxDocumentFrequency) {
+                    heaviest[queryLength++] = ((long) Float.floatToIntBits(documentWeights[i]) << 32) | i;
+                }
+            }
+            Arrays.sort(heaviest, 0, queryLength);
+
+            int touchedCount = 0;
+            for (int q = queryLength - 1; q >= 0 && q >= queryLength - QUERY_TERMS; q--) {
+                int i = (int) heaviest[q];
+                int term = documentTerms[i];
+                for (int p = postingStart[term]; p < postingStart[term + 1]; p++) {
+                    int other = postingDocuments[p];
+                    if (other != document) {
+                        if (accumulator[other] == 0) {
+                            touched[touchedCount++] = other;
+                        }
+                        accumulator[other] += documentWeights[i] * postingWeights[p];
+                    }
+                }
+            }
+
+            long[] partial = new long[touchedCount];
+            for (int i = 0; i < touchedCount; i++) {
+                partial[i] = ((long) Float.floatToIntBits(accumulator[touched[i]]) << 32) | touched[i];
+                accumulator[touched[i]] = 0;
+            }
+            Arrays.sort(partial);
+            List<Neighbor> exact = new ArrayList<>();
+            for (int i = touchedCount - 1; i >= 0 && i >= touchedCount - candidates; i--) {
+                int other = (int) partial[i];
+                exact.add(new Neighbor(other, cosine(document, other)));
+            }
+            exact.sort(Neighbor.ORDER);
+            Scored scored = new Scored(exact.size());
+            for (int i = 0; i < exact.size(); i++) {
+                scored.documents[i] = exact.get(i).document;
+                scored.scores[i] = exact.get(i).score;
+            }
+            return scored;
+        }
+
+        float cosine(int document1, int document2) {
+            int[] terms1 = terms[document1];
+            int[] terms2 = terms[document2];
+            float sum = 0;
+            for (int i = 0, j = 0; i < terms1.length && j < terms2.length; ) {
+                if (terms1[i] < terms2[j]) {
+                    i++;
+                }
+                else if (terms1[i] > terms2[j]) {
+                    j++;
+                }
+                else {
+                    sum += weights[document1][i++] * weights[document2][j++];
+                }
+            }
+            return sum;
+        }
+    }
+
+    private static class Scored {
+        final int[] documents;
+        final float[] scores;
+
+        Scored(int size) {
+            documents = new int[size];
+            scores = new float[size];
+        }
+    }
+
+    private static class Neighbor {
+        static final Comparator<Neighbor> ORDER = (n1, n2) -> {
+            int compare = Float.compare(n2.score, n1.score);
+            return compare != 0 ? compare : Integer.compare(n1.document, n2.document);
+        };
+
+        final int document;
+        final float score;
+
+        Neighbor(int document, float score) {
+            this.document = document;
+            this.score = score;
+        }
+    }
+
+    private static class Cached {
+        final String hash;
+        final String[] related;
+        final float[] scores;
+
+        Cached(String hash, String[] related, float[] scores) {
+            this.hash = hash;
+            this.related = related;
+            this.scores = scores;
+        }
+    }
+
+    private static Map<String, Cached> readCache(Path file, int count) {
+        Map<String, Cached> cached = new HashMap<>();
+        if (!Files.isRegularFile(file)) {
+            return cached;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (input.readInt() != CACHE_VERSION || input.readInt() != count) {
+                log.info("Related articles cache {} is for other settings: comparing all pages", file);
+                return cached;
+            }
+            int size = input.readInt();
+            for (int i = 0; i < size; i++) {
+                String key = input.readUTF();
+                String hash = input.readUTF();
+                String[] related = new String[input.readInt()];
+                float[] scores = new float[related.length];
+                for (int j = 0; j < related.length; j++) {
+                    related[j] = input.readUTF();
+                    scores[j] = input.readFloat();
+                }
+                cached.put(key, new Cached(hash, related, scores));
+            }
+            return cached;
+        } catch (IOException e) {
+            log.warn("Cannot read related articles cache {}: {}", file, e.getMessage());
+            return new HashMap<>();
+        }
+    }
+
+    private static void writeCache(Path file, int count, Map<String, Cached> cached) throws IOException {
+        Files.createDirectories(file.getParent());
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            output.writeInt(CACHE_VERSION);
+            output.writeInt(count);
+            output.writeInt(cached.size());
+            for (Map.Entry<String, Cached> entry : cached.entrySet()) {
+                output.writeUTF(entry.getKey());
+                output.writeUTF(entry.getValue().hash);
+                output.writeInt(entry.getValue().related.length);
+                for (int i = 0; i < entry.getValue().related.length; i++) {
+                    output.writeUTF(entry.getValue().related[i]);
+                    output.writeFloat(entry.getValue().scores[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.emmef.cms.main;
+
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures finding related articles on generated pages, in full and incremental builds, and checks that an
+ * incremental build finds the same related articles as a full one when the term weights did not change.
+ * <p>
+ * Pages are edited in two ways: with other punctuation, that changes their content hashes but not their terms,
+ * so the results must be the same as those of the full build, and with other words, that changes the weights of
+ * terms on all pages and is only measured. Arguments are the number of pages, the number of words per page, the
+ * number of related articles per page and the number of rounds. Exits with status 1 if a check fails.
+ */
+public class RelatedArticlesBenchmark {
+    private static final long SEED = 4711;
+    private static final int EDITED_EVERY = 100;
+
+    public static void main(String arg[]) throws IOException {
+        int pages = arg.length > 0 ? Integer.parseInt(arg[0]) : 10_000;
+        int words = arg.length > 1 ? Integer.parseInt(arg[1]) : 400;
+        int count = arg.length > 2 ? Integer.parseInt(arg[2]) : 5;
+        int rounds = arg.length > 3 ? Integer.parseInt(arg[3]) : 4;
+
+        String[] vocabulary = SearchIndexBenchmark.createVocabulary(new Random(SEED));
+        Random random = new Random(SEED);
+        List<SearchIndex.Document> documents = new ArrayList<>();
+        for (int i = 0; i < pages; i++) {
+            documents.add(SearchIndexBenchmark.createDocument(i, 0, vocabulary, words, random));
+        }
+        List<SearchIndex.Document> punctuated = new ArrayList<>(documents);
+        List<SearchIndex.Document> changed = new ArrayList<>(documents);
+        for (int i = 0; i < pages; i += EDITED_EVERY) {
+            SearchIndex.Document document = documents.get(i);
+            punctuated.set(i, new SearchIndex.Document(document.getKey(), document.getUrl(), document.getTitle(), document.getText().replace(". ", "; ")));
+            changed.set(i, SearchIndexBenchmark.createDocument(i, 1, vocabulary, words, random));
+        }
+        SearchIndex index = SearchIndex.create(documents, null);
+        SearchIndex punctuatedIndex = SearchIndex.create(punctuated, null);
+        SearchIndex changedIndex = SearchIndex.create(changed, null);
+        System.out.printf("%d pages, %d words per page, %d related articles per page, every %dth page edited%n",
+                pages, words, count, EDITED_EVERY);
+
+        RelatedArticles full = null;
+        for (int round = 1; round <= rounds; round++) {
+            long start = System.nanoTime();
+            full = RelatedArticles.create(index, count, null);
+            report("full " + round, pages, start);
+        }
+
+        int failed = 0;
+        Path cache = Files.createTempDirectory("search-cache");
+        try {
+            RelatedArticles.create(index, count, cache);
+            // Edits alternate with the original pages, so every round finds the edited pages changed
+            for (int round = 1; round <= rounds; round++) {
+                SearchIndex current = round % 2 == 1 ? punctuatedIndex : index;
+                long start = System.nanoTime();
+                RelatedArticles incremental = RelatedArticles.create(current, count, cache);
+                report("same terms " + round, pages, start);
+                int differences = differences(full, incremental, current);
+                if (differences > 0) {
+                    System.out.printf("FAILED: related articles of %d pages differ from those of the full build%n", differences);
+                    failed++;
+                }
+            }
+            for (int round = 1; round <= rounds; round++) {
+                long start = System.nanoTime();
+                RelatedArticles.create(round % 2 == 1 ? changedIndex : index, count, cache);
+                report("other words " + round, pages, start);
+            }
+        }
+        finally {
+            MoreFiles.deleteRecursively(cache, RecursiveDeleteOption.ALLOW_INSECURE);
+        }
+        if (failed > 0) {
+            System.exit(1);
+        }
+        System.out.println("Incremental builds with the same terms found the same related articles as the full build");
+    }
+
+    private static int differences(RelatedArticles expected, RelatedArticles actual, SearchIndex index) {
+        int differences = 0;
+        for (int document = 0; document < index.size(); document++) {
+            String key = index.getKey(document);
+            if (!expected.getRelated(key).equals(actual.getRelated(key))) {
+                differences++;
+            }
+        }
+        return differences;
+    }
+
+    private static void report(String name, int pages, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-30s %8.0f ms %9.0f pages/s%n", name, seconds * 1e3, pages / seconds);
+    }
+}
@@ -0,0 +1,84 @@
+package org.emmef.cms.main;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+/**
+ * Source provider for files that have been scanned already.
+ */
+@Slf4j
+abstract class ScannedSource implements SourceProvider {
+    /**
+     * Orders files per directory, with the files in a directory before its sub directories.
+     */
+    static final Comparator<String> COLLECT_ORDER = (p1, p2) -> {
+        String[] s1 = p1.split("/");
+        String[] s2 = p2.split("/");
+        for (int i = 0; i < s1.length && i < s2.length; i++) {
+            boolean file1 = i == s1.length - 1;
+            boolean file2 = i == s2.length - 1;
+            if (file1 != file2) {
+                return file1 ? -1 : 1;
+            }
+            int compare = s1[i].compareTo(s2[i]);
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return Integer.compare(s1.length, s2.length);
+    };
+
+    private final ImmutableList<SourceFile> files;
+    private final ImmutableMap<String, SourceFile> byRelativePath;
+    private final Map<Path, SourceFile> byPath;
+
+    ScannedSource(@NonNull Collection<SourceFile> scanned) {
+        List<SourceFile> sorted = new ArrayList<>(scanned);
+        sorted.sort((f1, f2) -> COLLECT_ORDER.compare(f1.getRelativePath(), f2.getRelativePath()));
+        this.files = ImmutableList.copyOf(sorted);
+        ImmutableMap.Builder<String, SourceFile> relative = ImmutableMap.builder();
+        Map<Path, SourceFile> paths = new HashMap<>();
+        files.forEach((file) -> {
+            relative.put(file.getRelativePath(), file);
+            paths.put(file.getPath(), file);
+        });
+        this.byRelativePath = relative.build();
+        this.byPath = paths;
+    }
+
+    @Override
+    public List<SourceFile> getFiles() {
+        return files;
+    }
+
+    @Override
+    public SourceFile getFile(@NonNull String relativePath) {
+        return byRelativePath.get(relativePath);
+    }
+
+    @Override
+    public FileTime getCreationTime(Path path) {
+        SourceFile file = byPath.get(path);
+        return orNow(path, file != null ? (file.getCreationTime() != null ? file.getCreationTime() : file.getLastModified()) : null);
+    }
+
+    @Override
+    public FileTime getLastModified(Path path) {
+        SourceFile file = byPath.get(path);
+        return orNow(path, file != null ? file.getLastModified() : null);
+    }
+
+    private static FileTime orNow(Path path, FileTime time) {
+        if (time != null) {
+            return time;
+        }
+        log.warn("Cannot determine time for {}", path);
+        return FileTime.fromMillis(System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,383 @@
+package org.emmef.cms.main;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.ImmutableIntArray;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Full-text search index of the pages, written as static files that a browser script queries.
+ * <p>
+ * Each page is tokenized into terms with their frequencies. Terms are lower case letters and digits, without
+ * diacritics. The inverted index is split into shards by the first {@value #PREFIX_LENGTH} characters of
+ * the terms, so that a query only loads the shards of its own terms. A shard maps each term to pairs of
+ * document number and frequency, where the number is the position of the page in {@code search/documents.json}.
+ * <p>
+ * The terms of each page are cached with a hash of its content, so that only pages that changed are
+ * tokenized again. Only tokenizing is incremental: the index is inverted and all shards are written on every
+ * build, as a page that is added or removed changes the document numbers in all shards. Inverting cached terms
+ * takes little time compared to tokenizing, and a {@link StagedSink} links shards that did not change.
+ */
+@Slf4j
+public class SearchIndex {
+    public static final String INDEX_DIRECTORY = "./search/";
+    public static final String DOCUMENTS = INDEX_DIRECTORY + "documents.json";
+    public static final String SCRIPT = INDEX_DIRECTORY + "search.js";
+    public static final int PREFIX_LENGTH = 2;
+    public static final int MIN_TERM_LENGTH = 2;
+    public static final int MAX_TERM_LENGTH = 40;
+    /**
+     * Terms in the title count as this many occurrences in the text.
+     */
+    public static final int TITLE_WEIGHT = 5;
+    private static final String CACHE_SUFFIX = ".terms";
+    private static final int CACHE_VERSION = 1;
+
+    /**
+     * A page to index.
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class Document {
+        /**
+         * Identifies the page in the cache, so it must be unique and usable as a file name.
+         */
+        @NonNull
+        private final String key;
+        @NonNull
+        private final String url;
+        @NonNull
+        private final String title;
+        @NonNull
+        private final String text;
+    }
+
+    private static class Terms {
+        final String hash;
+        final String[] terms;
+        final int[] frequencies;
+
+        Terms(String hash, String[] terms, int[] frequencies) {
+            this.hash = hash;
+            this.terms = terms;
+            this.frequencies = frequencies;
+        }
+    }
+
+    private final ImmutableList<Document> documents;
+    private final ImmutableList<Terms> terms;
+    @Getter
+    private final int tokenized;
+
+    private SearchIndex(ImmutableList<Document> documents, ImmutableList<Terms> terms, int tokenized) {
+        this.documents = documents;
+        this.terms = terms;
+        this.tokenized = tokenized;
+    }
+
+    /**
+     * Tokenizes the documents in parallel, reusing the cached terms of documents that did not change.
+     *
+     * @param cache directory to cache terms in, or {@code null} to tokenize all documents.
+     */
+    public static SearchIndex create(@NonNull List<Document> documents, Path cache) throws IOException {
+        if (cache != null) {
+            Files.createDirectories(cache);
+        }
+        AtomicInteger tokenized = new AtomicInteger();
+        List<Terms> terms = documents.parallelStream().map((document) -> {
+            String hash = Hashing.sha256().newHasher()
+                    .putString(document.getTitle(), StandardCharsets.UTF_8)
+                    .putChar('\n')
+                    .putString(document.getText(), StandardCharsets.UTF_8)
+                    .hash().toString();
+            Path cached = cache != null ? cache.resolve(document.getKey() + CACHE_SUFFIX) : null;
+            Terms result = cached != null ? readCached(cached, hash) : null;
+            if (result == null) {
+                result = count(hash, document);
+                tokenized.incrementAndGet();
+                if (cached != null) {
+                    writeCached(cached, result);
+                }
+            }
+            return result;
+        }).collect(Collectors.toList());
+        if (cache != null) {
+            removeStale(cache, documents);
+        }
+        log.info("Indexed {} pages for search, tokenized {}", documents.size(), tokenized.get());
+        return new SearchIndex(ImmutableList.copyOf(documents), ImmutableList.copyOf(terms), tokenized.get());
+    }
+
+    /**
+     * Writes the document list, the shards and the script that queries them.
+     */
+    public void write(@NonNull OutputSink sink) throws IOException {
+        Map<String, String> shards = createShards();
+        sink.write(DOCUMENTS, documentsJson());
+        for (Map.Entry<String, String> shard : shards.entrySet()) {
+            sink.write(INDEX_DIRECTORY + shard.getKey() + ".json", shard.getValue());
+        }
+        try (InputStream script = SearchIndex.class.getResourceAsStream("search.js")) {
+            if (script == null) {
+                log.error("Search script not found: index written without it");
+            }
+            else {
+                sink.write(SCRIPT, new String(ByteStreams.toByteArray(script), StandardCharsets.UTF_8));
+            }
+        }
+        log.info("Wrote search index of {} pages in {} shards", documents.size(), shards.size());
+    }
+
+    /**
+     * Inverts the index. Term occurrences are distributed over the shards in document order first, after which
+     * the shards are inverted and serialized in parallel. Postings are therefore ordered by document.
+     */
+    Map<String, String> createShards() {
+        Map<String, ImmutableIntArray.Builder> occurrences = new HashMap<>();
+        for (int document = 0; document < terms.size(); document++) {
+            String[] documentTerms = terms.get(document).terms;
+            ImmutableIntArray.Builder shard = null;
+            for (int term = 0; term < documentTerms.length; term++) {
+                // Terms are sorted, so consecutive terms are mostly in the same shard
+                if (shard == null || !samePrefix(documentTerms[term - 1], documentTerms[term])) {
+                    shard = occurrences.computeIfAbsent(shardOf(documentTerms[term]), (name) -> ImmutableIntArray.builder());
+                }
+                shard.add(document).add(term);
+            }
+        }
+        Map<String, String> shards = new ConcurrentHashMap<>();
+        occurrences.entrySet().parallelStream().forEach((entry) -> {
+            ImmutableIntArray pairs = entry.getValue().build();
+            Map<String, ImmutableIntArray.Builder> postings = new HashMap<>();
+            for (int i = 0; i < pairs.length(); i += 2) {
+                Terms documentTerms = terms.get(pairs.get(i));
+                int term = pairs.get(i + 1);
+                postings.computeIfAbsent(documentTerms.terms[term], (t) -> ImmutableIntArray.builder())
+                        .add(pairs.get(i))
+                        .add(documentTerms.frequencies[term]);
+            }
+            shards.put(entry.getKey(), shardJson(postings));
+        });
+        return new TreeMap<>(shards);
+    }
+
+    private static boolean samePrefix(String term1, String term2) {
+        int length = Math.min(PREFIX_LENGTH, term1.length());
+        return length == Math.min(PREFIX_LENGTH, term2.length()) && term1.regionMatches(0, term2, 0, length);
+    }
+
+    /**
+     * Returns the name of the shard of a term, that is the prefix of the term if it consists of ASCII
+     * letters and digits, or an underscore followed by the character codes as four hexadecimal digits each otherwise.
+     */
+    public static String shardOf(@NonNull String term) {
+        String prefix = term.substring(0, Math.min(PREFIX_LENGTH, term.length()));
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            if ((c < 'a' || c > 'z') && (c < '0' || c > '9')) {
+                StringBuilder name = new StringBuilder("_");
+                prefix.chars().forEach((code) -> name.append(String.format("%04x", code)));
+                return name.toString();
+            }
+        }
+        return prefix;
+    }
+
+    /**
+     * Splits text into terms, in the same way as the search script does with queries.
+     */
+    public static List<String> tokenize(@NonNull String text) {
+        String normalized = isAscii(text) ? text : Normalizer.normalize(text, Normalizer.Form.NFD);
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i <= normalized.length(); i++) {
+            char c = i < normalized.length() ? normalized.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                token.append(Character.toLowerCase(c));
+            }
+            else if (Character.getType(c) != Character.NON_SPACING_MARK && token.length() > 0) {
+                if (token.length() >= MIN_TERM_LENGTH && token.length() <= MAX_TERM_LENGTH) {
+                    tokens.add(token.toString());
+                }
+                token.setLength(0);
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Terms count(String hash, Document document) {
+        List<String> tokens = tokenize(document.getText());
+        List<String> titleTokens = tokenize(document.getTitle());
+        for (int i = 0; i < TITLE_WEIGHT; i++) {
+            tokens.addAll(titleTokens);
+        }
+        String[] sorted = tokens.toArray(new String[0]);
+        Arrays.sort(sorted);
+        int distinct = 0;
+        int[] frequencies = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            if (distinct > 0 && sorted[distinct - 1].equals(sorted[i])) {
+                frequencies[distinct - 1]++;
+            }
+            else {
+                sorted[distinct] = sorted[i];
+                frequencies[distinct++] = 1;
+            }
+        }
+        return new Terms(hash, Arrays.copyOf(sorted, distinct), Arrays.copyOf(frequencies, distinct));
+    }
+
+    private static Terms readCached(Path file, String hash) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (input.readInt() != CACHE_VERSION || !hash.equals(input.readUTF())) {
+                return null;
+            }
+            int count = input.readInt();
+            String[] terms = new String[count];
+            int[] frequencies = new int[count];
+            for (int i = 0; i < count; i++) {
+                terms[i] = input.readUTF();
+                frequencies[i] = input.readInt();
+            }
+            return new Terms(hash, terms, frequencies);
+        } catch (IOException e) {
+            log.warn("Cannot read cached terms {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    private static void writeCached(Path file, Terms terms) {
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            output.writeInt(CACHE_VERSION);
+            output.writeUTF(terms.hash);
+            output.writeInt(terms.terms.length);
+            for (int i = 0; i < terms.terms.length; i++) {
+                output.writeUTF(terms.terms[i]);
+                output.writeInt(terms.frequencies[i]);
+            }
+        } catch (IOException e) {
+            log.warn("Cannot cache terms in {}: {}", file, e.getMessage());
+        }
+    }
+
+    private static void removeStale(Path cache, List<Document> documents) throws IOException {
+        Set<String> current = documents.stream().map((document) -> document.getKey() + CACHE_SUFFIX).collect(Collectors.toSet());
+        try (Stream<Path> files = Files.list(cache)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(CACHE_SUFFIX) && !current.contains(name)) {
+                    Files.delete(file);
+                    log.debug("Removed terms of page that no longer exists: {}", name);
+                }
+            }
+        }
+    }
+
+    private String documentsJson() {
+        StringBuilder json = new StringBuilder("[");
+        for (Document document : documents) {
+            if (json.length() > 1) {
+                json.append(",\n");
+            }
+            json.append('[');
+            appendString(json, document.getUrl());
+            json.append(',');
+            appendString(json, document.getTitle());
+            json.append(']');
+        }
+        return json.append("]\n").toString();
+    }
+
+    private static String shardJson(Map<String, ImmutableIntArray.Builder> postings) {
+        String[] sorted = postings.keySet().toArray(new String[0]);
+        Arrays.sort(sorted);
+        StringBuilder json = new StringBuilder("{");
+        for (String term : sorted) {
+            if (json.length() > 1) {
+                json.append(",\n");
+            }
+            appendString(json, term);
+            json.append(":[");
+            ImmutableIntArray pairs = postings.get(term).build();
+            for (int i = 0; i < pairs.length(); i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append(pairs.get(i));
+            }
+            json.append(']');
+        }
+        return json.append("}\n").toString();
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            }
+            else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                json.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    public int size() {
+        return documents.size();
+    }
+
+    String getKey(int document) {
+        return documents.get(document).getKey();
+    }
+
+    /**
+     * Returns the hash of the content of a document, that changes when its terms change.
+     */
+    String getHash(int document) {
+        return terms.get(document).hash;
+    }
+
+    /**
+     * Returns the distinct terms of a document, sorted.
+     */
+    String[] getTerms(int document) {
+        return terms.get(document).terms;
+    }
+
+    int[] getFrequencies(int document) {
+        return terms.get(document).frequencies;
+    }
+}
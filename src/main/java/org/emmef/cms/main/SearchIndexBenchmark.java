@@ -0,0 +1,103 @@
+package org.emmef.cms.main;
+
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the throughput of search indexing on generated pages, in full and incremental builds.
+ * <p>
+ * Arguments are the number of pages, the number of words per page and the number of rounds.
+ */
+public class SearchIndexBenchmark {
+    private static final int VOCABULARY = 50_000;
+    private static final long SEED = 4711;
+
+    public static void main(String arg[]) throws IOException {
+        int pages = arg.length > 0 ? Integer.parseInt(arg[0]) : 10_000;
+        int words = arg.length > 1 ? Integer.parseInt(arg[1]) : 800;
+        int rounds = arg.length > 2 ? Integer.parseInt(arg[2]) : 5;
+
+        String[] vocabulary = createVocabulary(new Random(SEED));
+        List<SearchIndex.Document> documents = new ArrayList<>();
+        Random random = new Random(SEED);
+        long characters = 0;
+        for (int i = 0; i < pages; i++) {
+            SearchIndex.Document document = createDocument(i, 0, vocabulary, words, random);
+            characters += document.getText().length();
+            documents.add(document);
+        }
+        System.out.printf("%d pages, %d words per page, %.1f MB of text%n", pages, words, characters / 1e6);
+
+        for (int round = 1; round <= rounds; round++) {
+            MemorySink sink = new MemorySink();
+            long start = System.nanoTime();
+            SearchIndex index = SearchIndex.create(documents, null);
+            long tokenized = System.nanoTime();
+            index.write(sink);
+            long written = System.nanoTime();
+            report("full " + round, pages, characters, start, tokenized, written, sink);
+        }
+
+        Path cache = Files.createTempDirectory("search-cache");
+        try {
+            SearchIndex.create(documents, cache);
+            List<SearchIndex.Document> changed = new ArrayList<>(documents);
+            for (int i = 0; i < pages; i += 100) {
+                changed.set(i, createDocument(i, 1, vocabulary, words, random));
+            }
+            for (int round = 1; round <= rounds; round++) {
+                MemorySink sink = new MemorySink();
+                long start = System.nanoTime();
+                SearchIndex index = SearchIndex.create(round % 2 == 1 ? changed : documents, cache);
+                long tokenized = System.nanoTime();
+                index.write(sink);
+                long written = System.nanoTime();
+                report("incremental " + round + " (" + index.getTokenized() + " tokenized)", pages, characters, start, tokenized, written, sink);
+            }
+        }
+        finally {
+            MoreFiles.deleteRecursively(cache, RecursiveDeleteOption.ALLOW_INSECURE);
+        }
+    }
+
+    static String[] createVocabulary(Random random) {
+        String[] vocabulary = new String[VOCABULARY];
+        for (int i = 0; i < VOCABULARY; i++) {
+            StringBuilder word = new StringBuilder();
+            int length = 2 + random.nextInt(10);
+            for (int j = 0; j < length; j++) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            vocabulary[i] = word.toString();
+        }
+        return vocabulary;
+    }
+
+    /**
+     * Creates a page with words that are picked with a skewed distribution, so that some words are
+     * much more common than others, like in natural text.
+     */
+    static SearchIndex.Document createDocument(int number, int version, String[] vocabulary, int words, Random random) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            double skewed = Math.pow(random.nextDouble(), 3);
+            text.append(vocabulary[(int) (skewed * vocabulary.length)]).append(i % 12 == 11 ? ". " : " ");
+        }
+        return new SearchIndex.Document("page-" + number, "page-" + number + ".html",
+                "Page " + number + " version " + version, text.toString());
+    }
+
+    private static void report(String name, int pages, long characters, long start, long tokenized, long written, MemorySink sink) {
+        double seconds = (written - start) / 1e9;
+        System.out.printf("%-30s %8.0f ms (tokenize %6.0f ms, invert and write %6.0f ms) %9.0f pages/s %6.1f MB/s; %d files, %.1f MB%n",
+                name, seconds * 1e3, (tokenized - start) / 1e6, (written - tokenized) / 1e6,
+                pages / seconds, characters / 1e6 / seconds, sink.size(), sink.getTotalSize() / 1e6);
+    }
+}
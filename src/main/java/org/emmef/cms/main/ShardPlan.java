@@ -0,0 +1,422 @@
+package org.emmef.cms.main;
+
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.emmef.cms.page.FileDates;
+import org.emmef.cms.page.PageException;
+import org.emmef.cms.page.PageRecord;
+import org.joda.time.DateTimeZone;
+import org.jsoup.Jsoup;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Plan of a build that several processes share, where each renders the pages of one shard, so that no
+ * process needs the documents of all pages in memory.
+ * <p>
+ * Planning reads every page once and keeps a stub of it, with its dates and what other pages use of it. A
+ * worker reads the pages of its shard from the source and all other pages from their stubs, so titles, file
+ * names, navigation, latest articles, backlinks and tags come out the same in every worker. Pages belong to the
+ * shard of their position in the plan and listing pages to that of their file name, while the first shard
+ * writes the sitemap and feeds. Every worker writes a manifest of the files it wrote next to the plan, and
+ * merging the manifests checks that workers that wrote the same file wrote the same content. A worker that
+ * failed to write a file writes no manifest and fails, so the shards cannot be merged.
+ * <p>
+ * Output that the pages of several shards can share, like navigation files, assets and image variants, is only
+ * known to the shards whose pages use it. Shards write it to a directory of their own next to the plan, and
+ * merging moves every file of those to the target once, so that workers do not write the same files at the
+ * same time.
+ */
+@Slf4j
+public class ShardPlan {
+    private static final String FORMAT = "scms-shard-plan-1";
+    private static final String MANIFEST_HEADER = "# shard %d of %d";
+
+    private final Path file;
+    private final Map<String, Stub> stubs;
+    private final int shard;
+    private final int shards;
+    private final Set<PageRecord> owned = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+    private final Map<String, String> written = new ConcurrentSkipListMap<>();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private ShardPlan(Path file, Map<String, Stub> stubs, int shard, int shards) {
+        this.file = file;
+        this.stubs = stubs;
+        this.shard = shard;
+        this.shards = shards;
+    }
+
+    /**
+     * Reads all pages of the source and writes their stubs to the plan file. Returns the number of pages.
+     */
+    public static int write(@NonNull Path source, @NonNull BuildOptions options, @NonNull Path file) throws IOException {
+        List<byte[]> records;
+        try (SourceProvider sources = Pages.openSources(source, options.getSourceOverlays())) {
+            FileDates dates = options.isReproducible() ? FileDates.NONE : sources;
+            // Pages are parsed in parallel, but only their stubs are kept
+            records = sources.getFiles().parallelStream()
+                    .filter((sourceFile) -> Pages.isPage(sourceFile, options.getSourceDepth()))
+                    .map((sourceFile) -> createRecord(sourceFile, dates))
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList());
+        }
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            output.writeUTF(FORMAT);
+            output.writeInt(options.getSourceDepth());
+            output.writeBoolean(options.isReproducible());
+            output.writeInt(records.size());
+            for (byte[] record : records) {
+                output.write(record);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Planned {} pages in {}", records.size(), file);
+        return records.size();
+    }
+
+    /**
+     * Reads the plan for the worker of {@code shard}, that must have the options the plan was made with.
+     */
+    public static ShardPlan read(@NonNull Path file, @NonNull BuildOptions options, int shard, int shards) throws IOException {
+        if (shards < 1 || shard < 0 || shard >= shards) {
+            throw new IllegalArgumentException("Shard " + shard + " does not exist in " + shards + " shards");
+        }
+        Map<String, Stub> stubs = new HashMap<>();
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (!FORMAT.equals(input.readUTF())) {
+                throw new IllegalArgumentException("Not a shard plan: " + file);
+            }
+            if (input.readInt() != options.getSourceDepth() || input.readBoolean() != options.isReproducible()) {
+                throw new IllegalArgumentException("Shard plan " + file + " was made with another source depth or reproducibility");
+            }
+            int count = input.readInt();
+            for (int position = 0; position < count; position++) {
+                String relativePath = input.readUTF();
+                FileTime published = readTime(input);
+                FileTime modified = readTime(input);
+                byte[] html = new byte[input.readInt()];
+                input.readFully(html);
+                stubs.put(relativePath, new Stub(position, published, modified, html));
+            }
+        }
+        // The manifest of an earlier build must not be merged with the output of this one
+        Files.deleteIfExists(manifestFile(file, shard));
+        log.info("Shard {} of {} renders {} of {} planned pages", shard, shards, (stubs.size() + shards - 1 - shard) / shards, stubs.size());
+        return new ShardPlan(file, stubs, shard, shards);
+    }
+
+    /**
+     * Returns the page of the file, that is read with {@code reader} if it belongs to this shard and from its
+     * stub otherwise.
+     */
+    PageRecord read(@NonNull SourceFile sourceFile, @NonNull Pages.PageReader reader) throws IOException {
+        Stub stub = stubs.get(sourceFile.getRelativePath());
+        if (stub == null) {
+            throw new PageException("Not in shard plan " + file);
+        }
+        if (stub.position % shards == shard) {
+            PageRecord page = reader.read(sourceFile);
+            owned.add(page);
+            return page;
+        }
+        return new PageRecord(Jsoup.parse(new ByteArrayInputStream(stub.html), "UTF-8", ""), sourceFile.getPath(), sourceFile.getRoot(), stub);
+    }
+
+    /**
+     * Returns whether this shard renders the page.
+     */
+    public boolean isOwner(@NonNull PageRecord page) {
+        return owned.contains(page);
+    }
+
+    /**
+     * Returns whether this shard writes the generated file, which is not a page from the source.
+     */
+    public boolean isOwner(@NonNull String filename) {
+        return Math.floorMod(OutputSink.relative(filename).hashCode(), shards) == shard;
+    }
+
+    /**
+     * Returns whether this is the first shard, that writes what all pages share.
+     */
+    public boolean isFirst() {
+        return shard == 0;
+    }
+
+    /**
+     * Returns a sink that writes to {@code sink} and records the content hash of what is written for the manifest,
+     * and counts the writes that failed.
+     */
+    public OutputSink record(@NonNull OutputSink sink) {
+        return new OutputSink() {
+            @Override
+            public void write(@NonNull String path, @NonNull String content) throws IOException {
+                try {
+                    sink.write(path, content);
+                }
+                catch (IOException e) {
+                    throw failed(e);
+                }
+                written.put(OutputSink.relative(path), Hashing.sha256().hashString(content, StandardCharsets.UTF_8).toString());
+            }
+
+            @Override
+            public void copy(@NonNull Path file, @NonNull String path) throws IOException {
+                try {
+                    sink.copy(file, path);
+                    written.put(OutputSink.relative(path), MoreFiles.asByteSource(file).hash(Hashing.sha256()).toString());
+                }
+                catch (IOException e) {
+                    throw failed(e);
+                }
+            }
+
+            @Override
+            public OutputStream open(@NonNull String path) throws IOException {
+                HashingOutputStream output;
+                try {
+                    output = new HashingOutputStream(Hashing.sha256(), sink.open(path));
+                }
+                catch (IOException e) {
+                    throw failed(e);
+                }
+                return new FilterOutputStream(output) {
+                    private boolean counted = false;
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        try {
+                            output.write(b, off, len);
+                        }
+                        catch (IOException e) {
+                            throw failedWrite(e);
+                        }
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        }
+                        catch (IOException e) {
+                            throw failedWrite(e);
+                        }
+                        if (!counted) {
+                            written.put(OutputSink.relative(path), output.hash().toString());
+                        }
+                    }
+
+                    /**
+                     * Counts a stream once, however many of its calls fail.
+                     */
+                    private IOException failedWrite(IOException e) {
+                        if (counted) {
+                            return e;
+                        }
+                        counted = true;
+                        return failed(e);
+                    }
+                };
+            }
+
+            @Override
+            public void publish() throws IOException {
+                sink.publish();
+            }
+
+            @Override
+            public void close() throws IOException {
+                sink.close();
+            }
+
+            @Override
+            public String toString() {
+                return sink.toString();
+            }
+        };
+    }
+
+    /**
+     * Returns a sink for output that other shards may write too, that writes to a directory of this shard from
+     * which merging moves it to the target, and records what is written for the manifest.
+     */
+    public OutputSink shared() throws IOException {
+        Path directory = sharedDirectory(file, shard);
+        if (Files.exists(directory)) {
+            MoreFiles.deleteRecursively(directory, RecursiveDeleteOption.ALLOW_INSECURE);
+        }
+        Files.createDirectories(directory);
+        return record(new DirectorySink(directory));
+    }
+
+    /**
+     * Writes the manifest of the files that this shard wrote, or fails without writing it if a write failed.
+     */
+    public void writeManifest() throws IOException {
+        if (failed.get() > 0) {
+            throw new IOException("Shard " + shard + " of " + shards + " failed to write " + failed.get() + " files: not writing its manifest");
+        }
+        Path manifest = manifestFile(file, shard);
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format(MANIFEST_HEADER, shard, shards));
+        written.forEach((path, hash) -> lines.add(hash + " " + path));
+        Files.write(manifest, lines, StandardCharsets.UTF_8);
+        log.info("Shard {} of {} wrote {} files, listed in {}", shard, shards, written.size(), manifest);
+    }
+
+    /**
+     * Merges the manifests of all shards of the plan into one manifest next to the plan, moves the shared output
+     * of the shards to the target and returns the number of files in the manifest. Fails if a shard did not write
+     * its manifest, or if shards wrote different content to the same file.
+     */
+    public static int merge(@NonNull Path file, int shards, @NonNull Path target) throws IOException {
+        Map<String, String> merged = new TreeMap<>();
+        List<String> conflicts = new ArrayList<>();
+        for (int shard = 0; shard < shards; shard++) {
+            Path manifest = manifestFile(file, shard);
+            if (!Files.exists(manifest)) {
+                throw new IllegalStateException("Shard " + shard + " has no manifest: " + manifest);
+            }
+            List<String> lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals(String.format(MANIFEST_HEADER, shard, shards))) {
+                throw new IllegalStateException("Manifest " + manifest + " is not of shard " + shard + " of " + shards);
+            }
+            for (String line : lines.subList(1, lines.size())) {
+                int separator = line.indexOf(' ');
+                String hash = line.substring(0, separator);
+                String path = line.substring(separator + 1);
+                String previous = merged.putIfAbsent(path, hash);
+                if (previous != null && !previous.equals(hash)) {
+                    conflicts.add(path);
+                }
+            }
+        }
+        if (!conflicts.isEmpty()) {
+            throw new IllegalStateException("Shards wrote different content to " + conflicts);
+        }
+        List<String> lines = new ArrayList<>();
+        merged.forEach((path, hash) -> lines.add(hash + " " + path));
+        Path manifest = file.resolveSibling(file.getFileName() + ".manifest");
+        Files.write(manifest, lines, StandardCharsets.UTF_8);
+
+        Set<String> moved = new HashSet<>();
+        for (int shard = 0; shard < shards; shard++) {
+            Path directory = sharedDirectory(file, shard);
+            if (!Files.isDirectory(directory)) {
+                continue;
+            }
+            List<Path> sharedFiles;
+            try (Stream<Path> walk = Files.walk(directory)) {
+                sharedFiles = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+            }
+            for (Path shared : sharedFiles) {
+                String path = directory.relativize(shared).toString().replace(File.separatorChar, '/');
+                if (moved.add(path)) {
+                    Path destination = target.resolve(path);
+                    Files.createDirectories(destination.getParent());
+                    Files.move(shared, destination, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            MoreFiles.deleteRecursively(directory, RecursiveDeleteOption.ALLOW_INSECURE);
+        }
+        log.info("Merged {} shards that wrote {} files into {}, of which {} shared", shards, merged.size(), manifest, moved.size());
+        return merged.size();
+    }
+
+    private IOException failed(IOException e) {
+        failed.incrementAndGet();
+        return e;
+    }
+
+    private static Path sharedDirectory(Path file, int shard) {
+        return file.resolveSibling(file.getFileName() + "." + shard + ".shared");
+    }
+
+    private static Path manifestFile(Path file, int shard) {
+        return file.resolveSibling(file.getFileName() + "." + shard + ".manifest");
+    }
+
+    private static byte[] createRecord(SourceFile sourceFile, FileDates dates) {
+        try {
+            PageRecord page = Pages.readFile(sourceFile, dates);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(bytes);
+            output.writeUTF(sourceFile.getRelativePath());
+            writeTime(output, page.getTimePublished());
+            writeTime(output, page.getTimeModified());
+            byte[] html = page.createStub().outerHtml().getBytes(StandardCharsets.UTF_8);
+            output.writeInt(html.length);
+            output.write(html);
+            return bytes.toByteArray();
+        }
+        catch (PageException e) {
+            log.error("Not a valid source file: " + sourceFile, e);
+            return null;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeTime(DataOutputStream output, FileTime time) throws IOException {
+        output.writeBoolean(time != null);
+        if (time != null) {
+            Instant instant = time.toInstant();
+            output.writeLong(instant.getEpochSecond());
+            output.writeInt(instant.getNano());
+        }
+    }
+
+    private static FileTime readTime(DataInputStream input) throws IOException {
+        return input.readBoolean() ? FileTime.from(Instant.ofEpochSecond(input.readLong(), input.readInt())) : null;
+    }
+
+    /**
+     * Stub of a page, that supplies the dates the page had when it was planned.
+     */
+    private static class Stub implements FileDates {
+        private final int position;
+        private final FileTime published;
+        private final FileTime modified;
+        private final byte[] html;
+
+        Stub(int position, FileTime published, FileTime modified, byte[] html) {
+            this.position = position;
+            this.published = published;
+            this.modified = modified;
+            this.html = html;
+        }
+
+        @Override
+        public FileTime getCreationTime(Path path) {
+            return published;
+        }
+
+        @Override
+        public FileTime getLastModified(Path path) {
+            return modified;
+        }
+
+        @Override
+        public DateTimeZone getZone() {
+            return DateTimeZone.UTC;
+        }
+    }
+}
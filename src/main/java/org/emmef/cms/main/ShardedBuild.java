@@ -0,0 +1,150 @@
+package org.emmef.cms.main;
+
+import com.google.common.collect.ImmutableList;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.emmef.cms.parameters.ExtraArgumentStrategy;
+import org.emmef.cms.parameters.Parameter;
+import org.emmef.cms.parameters.ParameterReader;
+import org.emmef.cms.parameters.ParameterResults;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds one site with several processes, that each render the pages of one shard, so that a site too large
+ * for the memory or the time of one process can be built. See {@link ShardPlan}.
+ * <p>
+ * The arguments are those of {@link Main}, with the step to take. Step {@code plan} writes the plan, step
+ * {@code render} renders the pages of {@code --shard}, from 0, and step {@code merge} merges the manifests of
+ * the shards. Step {@code all} takes all steps, with a local worker process per shard. All steps of a build must
+ * get the same arguments, apart from the step and shard. Workers write to the same target directory, so archives
+ * are not supported, and the image cache has a directory per shard.
+ */
+@Slf4j
+public class ShardedBuild {
+    public static final Parameter STEP = Parameter.single("step").withDescription("Step to take: plan, render, merge or all").withDefault("all");
+    public static final Parameter PLAN = Parameter.single("plan").withDescription("Plan file, next to which shards write their manifests, by default next to the target");
+    public static final Parameter SHARDS = Parameter.single("shards").withDescription("Number of shards").withDefault(Integer.toString(Runtime.getRuntime().availableProcessors()));
+    public static final Parameter SHARD = Parameter.single("shard").withDescription("Shard to render, from 0");
+    private static final String PLAN_SUFFIX = ".shard-plan";
+
+    private final Main main;
+
+    public ShardedBuild(@NonNull Main main) {
+        this.main = main;
+    }
+
+    public static void main(String arg[]) throws IOException, InterruptedException {
+        if (!new ShardedBuild(new Main()).build(arg)) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Takes the step of the arguments and returns whether it succeeded.
+     */
+    public boolean build(String[] arg) throws IOException, InterruptedException {
+        ParameterResults results = new ParameterReader(ExtraArgumentStrategy.ALLOW_BOTH,
+                ImmutableList.<Parameter>builder().add(STEP, PLAN, SHARDS, SHARD, Main.SOURCE, Main.TARGET, Main.COPYRIGHT).addAll(Main.OPTION_PARAMETERS).build()).read(arg);
+        Path source = main.getWorkingDirectory().resolve(results.getValue(Main.SOURCE));
+        Path target = main.getWorkingDirectory().resolve(results.getValue(Main.TARGET));
+        String targetName = target.getFileName().toString().toLowerCase();
+        if (targetName.endsWith(".zip") || targetName.endsWith(".jar")) {
+            throw new IllegalArgumentException("Shards cannot write to the same archive: " + target);
+        }
+        Path plan = results.getValue(PLAN) != null ?
+                main.getWorkingDirectory().resolve(results.getValue(PLAN)) : Pages.nextToTarget(target, PLAN_SUFFIX);
+        int shards = Integer.parseInt(results.getValue(SHARDS));
+        if (shards < 1) {
+            throw new IllegalArgumentException(SHARDS.getNameKey() + ": must be positive: " + shards);
+        }
+        BuildOptions options = main.readOptions(results).withCopyRight(results.getValue(Main.COPYRIGHT));
+        if (options.getGenerations() > 0) {
+            throw new IllegalArgumentException(Main.GENERATIONS.getNameKey() + ": shards cannot write to the same generation");
+        }
+
+        String step = results.getValue(STEP);
+        switch (step) {
+            case "plan":
+                ShardPlan.write(source, options, plan);
+                return true;
+            case "render":
+                if (results.getValue(SHARD) == null) {
+                    throw new IllegalArgumentException(SHARD.getNameKey() + ": required to render");
+                }
+                render(source, target, options, plan, Integer.parseInt(results.getValue(SHARD)), shards);
+                return true;
+            case "merge":
+                ShardPlan.merge(plan, shards, target);
+                return true;
+            case "all":
+                long start = System.nanoTime();
+                ShardPlan.write(source, options, plan);
+                if (!runWorkers(arg, shards)) {
+                    return false;
+                }
+                ShardPlan.merge(plan, shards, target);
+                log.info("Built {} in {} shards in {} ms", source, shards, (System.nanoTime() - start) / 1_000_000);
+                return true;
+            default:
+                throw new IllegalArgumentException(STEP.getNameKey() + ": unknown step: " + step);
+        }
+    }
+
+    private void render(Path source, Path target, BuildOptions options, Path plan, int shard, int shards) throws IOException {
+        if (options.isImages()) {
+            Path imageCache = options.getImageCache() != null ? options.getImageCache() : Pages.nextToTarget(target, ".image-cache");
+            options = options.withImageCache(imageCache.resolve("shard-" + shard));
+        }
+        // Workers may start together, so the target is created in a way that tolerates that
+        Files.createDirectories(target, PosixFilePermissions.asFileAttribute(Pages.ATTRIBUTES));
+        main.build(source, target, options.withShardPlan(ShardPlan.read(plan, options, shard, shards)));
+    }
+
+    /**
+     * Runs a worker process for every shard, with the JVM options of this process, and returns whether all succeeded.
+     */
+    private boolean runWorkers(String[] arg, int shards) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(FileSystems.getDefault().getPath(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ShardedBuild.class.getName());
+        for (int i = 0; i < arg.length; i++) {
+            if (STEP.getNameKey().equals(arg[i])) {
+                i++;
+            }
+            else if (!arg[i].startsWith(STEP.getNameKey() + "=")) {
+                command.add(arg[i]);
+            }
+        }
+        command.add(STEP.getNameKey() + "=render");
+
+        List<Process> workers = new ArrayList<>();
+        for (int shard = 0; shard < shards; shard++) {
+            List<String> workerCommand = new ArrayList<>(command);
+            workerCommand.add(SHARD.getNameKey() + "=" + shard);
+            workers.add(new ProcessBuilder(workerCommand)
+                    .directory(main.getWorkingDirectory().toAbsolutePath().toFile())
+                    .inheritIO()
+                    .start());
+        }
+        boolean succeeded = true;
+        for (int shard = 0; shard < shards; shard++) {
+            int status = workers.get(shard).waitFor();
+            if (status != 0) {
+                log.error("Shard {} of {} failed with status {}", shard, shards, status);
+                succeeded = false;
+            }
+        }
+        return succeeded;
+    }
+}
@@ -0,0 +1,307 @@
+package org.emmef.cms.main;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.emmef.cms.page.PageRecord;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.select.NodeVisitor;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.*;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.FileTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+
+/**
+ * Writes a sitemap and Atom feeds for the pages, streaming them through StAX.
+ * <p>
+ * A sitemap contains at most {@value #MAX_SITEMAP_URLS} URLs. With more pages, numbered sitemaps are written
+ * and {@code sitemap.xml} becomes the index that lists them. There is a feed for the whole site and one for
+ * every top-level section, that is a child of a root page, with the most recently changed pages.
+ */
+@Slf4j
+public class SiteFeeds {
+    public static final int MAX_SITEMAP_URLS = 50000;
+    public static final int FEED_ENTRIES = 20;
+    public static final String SITEMAP = "./sitemap.xml";
+    public static final String SITE_FEED = "./atom.xml";
+    private static final String FEED_SUFFIX = ".atom.xml";
+    private static final String SITEMAP_NAMESPACE = "http://www.sitemaps.org/schemas/sitemap/0.9";
+    private static final String ATOM_NAMESPACE = "http://www.w3.org/2005/Atom";
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    private final String siteUrl;
+    private final String author;
+
+    /**
+     * @param siteUrl absolute URL of the site root, as returned by {@link #siteUrl(String)}.
+     * @param author author of the feeds, or {@code null} to use the title of the feed.
+     */
+    public SiteFeeds(@NonNull String siteUrl, String author) {
+        this.siteUrl = siteUrl;
+        this.author = author;
+    }
+
+    /**
+     * Validates an absolute HTTP(S) URL and makes sure it ends with a slash.
+     */
+    public static String siteUrl(@NonNull String url) {
+        String trimmed = url.trim();
+        try {
+            URI uri = new URI(trimmed);
+            String scheme = uri.getScheme();
+            if (uri.getHost() == null || !("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme))) {
+                throw new IllegalArgumentException("Site URL must be an absolute http or https URL: " + url);
+            }
+        }
+        catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Site URL is not valid: " + url, e);
+        }
+        return trimmed.endsWith("/") ? trimmed : trimmed + "/";
+    }
+
+    /**
+     * Writes the sitemap of the pages, splitting it into an index and numbered sitemaps if there are too many.
+     */
+    public void writeSitemap(@NonNull OutputSink sink, @NonNull List<PageRecord> pages) throws IOException {
+        if (pages.size() <= MAX_SITEMAP_URLS) {
+            writeUrlSet(sink, SITEMAP, pages);
+            return;
+        }
+        int parts = (pages.size() + MAX_SITEMAP_URLS - 1) / MAX_SITEMAP_URLS;
+        List<FileTime> modified = new ArrayList<>();
+        for (int part = 0; part < parts; part++) {
+            List<PageRecord> partPages = pages.subList(part * MAX_SITEMAP_URLS, Math.min(pages.size(), (part + 1) * MAX_SITEMAP_URLS));
+            writeUrlSet(sink, sitemapPart(part), partPages);
+            modified.add(mostRecent(partPages));
+        }
+        write(sink, SITEMAP, (xml) -> {
+            xml.writeStartElement("sitemapindex");
+            xml.writeDefaultNamespace(SITEMAP_NAMESPACE);
+            xml.writeCharacters("\n");
+            for (int part = 0; part < parts; part++) {
+                xml.writeStartElement("sitemap");
+                writeElement(xml, "loc", siteUrl + OutputSink.relative(sitemapPart(part)));
+                writeElement(xml, "lastmod", format(modified.get(part)));
+                xml.writeEndElement();
+                xml.writeCharacters("\n");
+            }
+            xml.writeEndElement();
+        });
+        log.info("Wrote sitemap index {} with {} sitemaps for {} pages", SITEMAP, parts, pages.size());
+    }
+
+    /**
+     * Writes the feed of the site and those of the top-level sections.
+     *
+     * @param pages the pages, most recent first.
+     */
+    public void writeFeeds(@NonNull OutputSink sink, @NonNull List<PageRecord> pages) throws IOException {
+        PageRecord home = null;
+        Map<PageRecord, List<PageRecord>> sections = new LinkedHashMap<>();
+        for (PageRecord page : pages) {
+            if (home == null && page.isIndex()) {
+                home = page;
+            }
+            PageRecord section = getSection(page);
+            if (section != null) {
+                List<PageRecord> entries = sections.computeIfAbsent(section, (s) -> new ArrayList<>());
+                if (entries.size() < FEED_ENTRIES) {
+                    entries.add(page);
+                }
+            }
+        }
+        String siteTitle = home != null ? home.getTitle() : siteUrl;
+        writeFeed(sink, SITE_FEED, siteTitle, siteUrl, siteUrl, pages.subList(0, Math.min(pages.size(), FEED_ENTRIES)));
+        for (Map.Entry<PageRecord, List<PageRecord>> entry : sections.entrySet()) {
+            PageRecord section = entry.getKey();
+            writeFeed(sink, getFeedPath(section), section.getTitle(), urn(section), url(section), entry.getValue());
+        }
+        log.info("Wrote site feed {} and {} section feeds", SITE_FEED, sections.size());
+    }
+
+    /**
+     * Returns the path of the feed of a top-level section, next to the page of the section.
+     */
+    public static String getFeedPath(@NonNull PageRecord section) {
+        String filename = section.getDynamicFilename();
+        int extension = filename.lastIndexOf('.');
+        return (extension > filename.lastIndexOf('/') ? filename.substring(0, extension) : filename) + FEED_SUFFIX;
+    }
+
+    private static PageRecord getSection(PageRecord page) {
+        List<PageRecord> parents = page.getParents(false);
+        if (parents.isEmpty()) {
+            return null;
+        }
+        return parents.size() == 1 ? page : parents.get(1);
+    }
+
+    private void writeUrlSet(OutputSink sink, String path, List<PageRecord> pages) throws IOException {
+        write(sink, path, (xml) -> {
+            xml.writeStartElement("urlset");
+            xml.writeDefaultNamespace(SITEMAP_NAMESPACE);
+            xml.writeCharacters("\n");
+            for (PageRecord page : pages) {
+                xml.writeStartElement("url");
+                writeElement(xml, "loc", url(page));
+                writeElement(xml, "lastmod", format(page.getTimeModified()));
+                xml.writeEndElement();
+                xml.writeCharacters("\n");
+            }
+            xml.writeEndElement();
+        });
+        log.info("Wrote sitemap {} with {} pages", path, pages.size());
+    }
+
+    private void writeFeed(OutputSink sink, String path, String title, String id, String alternate, List<PageRecord> pages) throws IOException {
+        write(sink, path, (xml) -> {
+            xml.writeStartElement("feed");
+            xml.writeDefaultNamespace(ATOM_NAMESPACE);
+            xml.writeCharacters("\n");
+            writeElement(xml, "title", title);
+            writeElement(xml, "id", id);
+            writeElement(xml, "updated", format(mostRecent(pages)));
+            writeLink(xml, "self", "application/atom+xml", siteUrl + encode(OutputSink.relative(path)));
+            writeLink(xml, "alternate", "text/html", alternate);
+            xml.writeStartElement("author");
+            writeElement(xml, "name", author != null ? author : title);
+            xml.writeEndElement();
+            xml.writeCharacters("\n");
+            for (PageRecord page : pages) {
+                xml.writeStartElement("entry");
+                writeElement(xml, "title", page.getTitle());
+                writeElement(xml, "id", urn(page));
+                writeLink(xml, "alternate", "text/html", url(page));
+                writeElement(xml, "published", format(page.getTimePublished()));
+                writeElement(xml, "updated", format(page.getTimeModified()));
+                String summary = summaryHtml(page);
+                if (summary != null) {
+                    xml.writeStartElement("summary");
+                    xml.writeAttribute("type", "html");
+                    xml.writeCharacters(summary);
+                    xml.writeEndElement();
+                }
+                xml.writeEndElement();
+                xml.writeCharacters("\n");
+            }
+            xml.writeEndElement();
+        });
+    }
+
+    /**
+     * Returns the summary of the page as HTML, with links made absolute so that they work in feed readers.
+     */
+    private String summaryHtml(PageRecord page) {
+        List<Node> summary = page.ensureSummary();
+        if (summary == null || summary.isEmpty()) {
+            return null;
+        }
+        URI base = URI.create(url(page));
+        StringBuilder html = new StringBuilder();
+        for (Node node : summary) {
+            Node copy = node.clone();
+            copy.traverse(new NodeVisitor() {
+                @Override
+                public void head(Node node, int depth) {
+                    if (node instanceof Element) {
+                        absolute((Element) node, "href");
+                        absolute((Element) node, "src");
+                    }
+                }
+
+                @Override
+                public void tail(Node node, int depth) {
+                }
+
+                private void absolute(Element element, String attribute) {
+                    String link = element.attr(attribute);
+                    if (link.isEmpty() || PageRecord.URL_SCHEME_PATTERN.matcher(link).find()) {
+                        return;
+                    }
+                    try {
+                        element.attr(attribute, base.resolve(link).toString());
+                    }
+                    catch (IllegalArgumentException e) {
+                        log.debug("Cannot make link {} in summary of {} absolute: {}", link, page, e.getMessage());
+                    }
+                }
+            });
+            html.append(copy.outerHtml());
+        }
+        return html.toString().trim();
+    }
+
+    private String url(PageRecord page) {
+        return page.isIndex() ? siteUrl : siteUrl + encode(OutputSink.relative(page.getDynamicFilename()));
+    }
+
+    private static String urn(PageRecord page) {
+        return "urn:uuid:" + page.getId();
+    }
+
+    private static String encode(String path) {
+        try {
+            return new URI(null, null, path, null).toASCIIString();
+        }
+        catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Cannot encode path " + path, e);
+        }
+    }
+
+    private static String sitemapPart(int part) {
+        return "./sitemap-" + (part + 1) + ".xml";
+    }
+
+    private static FileTime mostRecent(List<PageRecord> pages) {
+        FileTime mostRecent = FileTime.fromMillis(0);
+        for (PageRecord page : pages) {
+            if (page.getTimeModified().compareTo(mostRecent) > 0) {
+                mostRecent = page.getTimeModified();
+            }
+        }
+        return mostRecent;
+    }
+
+    private static String format(FileTime time) {
+        return DateTimeFormatter.ISO_INSTANT.format(time.toInstant().truncatedTo(ChronoUnit.SECONDS));
+    }
+
+    private static void writeElement(XMLStreamWriter xml, String name, String text) throws XMLStreamException {
+        xml.writeStartElement(name);
+        xml.writeCharacters(text);
+        xml.writeEndElement();
+    }
+
+    private static void writeLink(XMLStreamWriter xml, String rel, String type, String href) throws XMLStreamException {
+        xml.writeEmptyElement("link");
+        xml.writeAttribute("rel", rel);
+        xml.writeAttribute("type", type);
+        xml.writeAttribute("href", href);
+    }
+
+    private static void write(OutputSink sink, String path, XmlContent content) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(sink.open(path), StandardCharsets.UTF_8))) {
+            XMLStreamWriter xml = OUTPUT_FACTORY.createXMLStreamWriter(writer);
+            xml.writeStartDocument("UTF-8", "1.0");
+            xml.writeCharacters("\n");
+            content.write(xml);
+            xml.writeEndDocument();
+            xml.close();
+        }
+        catch (XMLStreamException e) {
+            throw new IOException("Cannot write " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    private interface XmlContent {
+        void write(XMLStreamWriter xml) throws XMLStreamException;
+    }
+}
@@ -0,0 +1,53 @@
+package org.emmef.cms.main;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * A file in the source, with the attributes that were read when the source was scanned.
+ */
+@Getter
+@AllArgsConstructor
+public class SourceFile {
+    /**
+     * Path relative to the source root, with forward slashes.
+     */
+    @NonNull
+    private final String relativePath;
+    @NonNull
+    private final Path path;
+    /**
+     * Root of the source that contains the file.
+     */
+    @NonNull
+    private final Path root;
+    private final FileTime creationTime;
+    private final FileTime lastModified;
+    private final long size;
+
+    public String getName() {
+        return relativePath.substring(relativePath.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Returns the number of directories between the source root and the file.
+     */
+    public int getDepth() {
+        int depth = 0;
+        for (int i = 0; i < relativePath.length(); i++) {
+            if (relativePath.charAt(i) == '/') {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    @Override
+    public String toString() {
+        return path.toString();
+    }
+}
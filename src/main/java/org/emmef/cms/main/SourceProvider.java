@@ -0,0 +1,47 @@
+package org.emmef.cms.main;
+
+import lombok.NonNull;
+import org.emmef.cms.page.FileDates;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * The files to generate the site from, scanned once. Dates are taken from the attributes that were read
+ * during the scan.
+ */
+public interface SourceProvider extends FileDates, Closeable {
+    /**
+     * Returns all files, where each directory lists its own files by name, followed by its sub directories
+     * by name. Files and directories whose names start with a dot or an underscore are left out.
+     */
+    List<SourceFile> getFiles();
+
+    /**
+     * Returns the file with the path relative to the source root, or {@code null} if there is none.
+     */
+    SourceFile getFile(@NonNull String relativePath);
+
+    default Path resolve(@NonNull String relativePath) {
+        SourceFile file = getFile(relativePath);
+        return file != null ? file.getPath() : null;
+    }
+
+    /**
+     * Opens a ZIP archive if the root is a file that ends with {@code .zip} or {@code .jar}, or a directory otherwise.
+     */
+    static SourceProvider open(@NonNull Path root) throws IOException {
+        String name = root.getFileName().toString().toLowerCase();
+        if (Files.isRegularFile(root) && (name.endsWith(".zip") || name.endsWith(".jar"))) {
+            return ZipSource.open(root);
+        }
+        return new DirectorySource(root);
+    }
+
+    static boolean isIgnored(@NonNull String name) {
+        return name.startsWith("_") || name.startsWith(".");
+    }
+}
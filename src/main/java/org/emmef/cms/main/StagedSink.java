@@ -0,0 +1,274 @@
+package org.emmef.cms.main;
+
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes the site to a new generation directory next to the target, where the target is a symbolic link to
+ * the generation that is published, so readers of the target never see a site that is partly written.
+ * <p>
+ * Generations are named after the target with a number, like {@code site.1}, {@code site.2} and so on.
+ * Files that are the same as in the published generation are hard links to that file instead of copies, so
+ * only changed files are written. Text is the same if its content is, and copied files if their size and
+ * modification time are, as copies keep the time of their source. Streamed files are compared after they
+ * were written. Publishing replaces the link atomically and deletes all but the last generations, that are
+ * kept to roll back to by pointing the link at one of them.
+ * A generation that is closed without being published is deleted, and a generation in which a write failed is
+ * not published, as the build reports such failures without stopping.
+ */
+@Slf4j
+public class StagedSink implements OutputSink {
+    private final Path target;
+    private final Path generation;
+    private final Path previous;
+    private final int number;
+    private final int keep;
+    private final DirectorySink sink;
+    private final AtomicInteger written = new AtomicInteger();
+    private final AtomicInteger linked = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private boolean published = false;
+
+    private StagedSink(Path target, Path previous, int number, int keep) {
+        this.target = target;
+        this.previous = previous;
+        this.number = number;
+        this.keep = keep;
+        this.generation = target.resolveSibling(target.getFileName() + "." + number);
+        this.sink = new DirectorySink(generation);
+    }
+
+    /**
+     * Creates the next generation of the target, that must be a symbolic link or not exist, where publishing
+     * keeps {@code keep} generations.
+     */
+    public static StagedSink open(@NonNull Path target, int keep) throws IOException {
+        if (keep < 1) {
+            throw new IllegalArgumentException("Must keep at least one generation: " + keep);
+        }
+        Path absolute = target.toAbsolutePath().normalize();
+        if (Files.exists(absolute, LinkOption.NOFOLLOW_LINKS) && !Files.isSymbolicLink(absolute)) {
+            throw new IllegalArgumentException("Target of generations must be a symbolic link: " + target);
+        }
+        Path previous = null;
+        if (Files.isSymbolicLink(absolute)) {
+            Path published = absolute.resolveSibling(Files.readSymbolicLink(absolute));
+            if (Files.isDirectory(published)) {
+                previous = published;
+            }
+        }
+        List<Integer> numbers = generations(absolute);
+        StagedSink sink = new StagedSink(absolute, previous, numbers.isEmpty() ? 1 : numbers.get(numbers.size() - 1) + 1, keep);
+        Files.createDirectory(sink.generation, PosixFilePermissions.asFileAttribute(Pages.ATTRIBUTES));
+        log.info("Writing generation {} of {}, unchanged files linked from {}", sink.number, target, previous);
+        return sink;
+    }
+
+    @Override
+    public void write(@NonNull String path, @NonNull String content) throws IOException {
+        try {
+            Path destination = clear(path);
+            Path same = previous(path);
+            byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+            if (same != null && Files.size(same) == bytes.length && Arrays.equals(Files.readAllBytes(same), bytes)) {
+                link(destination, same);
+            }
+            else {
+                sink.write(path, content);
+                written.incrementAndGet();
+            }
+        }
+        catch (IOException e) {
+            throw failed(e);
+        }
+    }
+
+    @Override
+    public void copy(@NonNull Path file, @NonNull String path) throws IOException {
+        try {
+            Path destination = clear(path);
+            Path same = previous(path);
+            if (same != null && Files.size(same) == Files.size(file)
+                    && Files.getLastModifiedTime(same).equals(Files.getLastModifiedTime(file))) {
+                link(destination, same);
+            }
+            else {
+                sink.copy(file, path);
+                written.incrementAndGet();
+            }
+        }
+        catch (IOException e) {
+            throw failed(e);
+        }
+    }
+
+    @Override
+    public OutputStream open(@NonNull String path) throws IOException {
+        Path destination;
+        OutputStream stream;
+        try {
+            destination = clear(path);
+            stream = sink.open(path);
+        }
+        catch (IOException e) {
+            throw failed(e);
+        }
+        return new FilterOutputStream(stream) {
+            private boolean counted = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    out.write(b);
+                }
+                catch (IOException e) {
+                    throw failedWrite(e);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    out.write(b, off, len);
+                }
+                catch (IOException e) {
+                    throw failedWrite(e);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                    // Streamed content is only known when it was written, so an unchanged file is linked afterwards
+                    Path same = previous(path);
+                    if (same != null && Files.size(same) == Files.size(destination)
+                            && MoreFiles.asByteSource(same).contentEquals(MoreFiles.asByteSource(destination))) {
+                        Files.delete(destination);
+                        link(destination, same);
+                    }
+                    else {
+                        written.incrementAndGet();
+                    }
+                }
+                catch (IOException e) {
+                    throw failedWrite(e);
+                }
+            }
+
+            /**
+             * Counts a stream once, however many of its calls fail.
+             */
+            private IOException failedWrite(IOException e) {
+                if (counted) {
+                    return e;
+                }
+                counted = true;
+                return failed(e);
+            }
+        };
+    }
+
+    /**
+     * Points the target at the new generation and deletes the generations that are no longer kept, unless a write
+     * to the generation failed: then the target is left as it is and the generation is deleted when closed.
+     */
+    @Override
+    public synchronized void publish() throws IOException {
+        if (failed.get() > 0) {
+            throw new IOException("Not publishing generation " + number + " of " + target + ": " + failed.get() + " writes failed");
+        }
+        Path link = target.resolveSibling("." + target.getFileName() + ".link");
+        Files.deleteIfExists(link);
+        Files.createSymbolicLink(link, generation.getFileName());
+        Files.move(link, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        published = true;
+        log.info("Published generation {} of {}: wrote {} files and linked {} unchanged ones", number, target, written.get(), linked.get());
+
+        List<Integer> numbers = generations(target);
+        for (int old : numbers.subList(0, Math.max(0, numbers.size() - keep))) {
+            Path directory = target.resolveSibling(target.getFileName() + "." + old);
+            try {
+                MoreFiles.deleteRecursively(directory, RecursiveDeleteOption.ALLOW_INSECURE);
+                log.info("Deleted generation {} of {}", old, target);
+            } catch (IOException e) {
+                log.warn("Cannot delete generation {}: {}", directory, e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!published) {
+            log.warn("Generation {} of {} was not published: deleting it", number, target);
+            MoreFiles.deleteRecursively(generation, RecursiveDeleteOption.ALLOW_INSECURE);
+        }
+    }
+
+    /**
+     * Removes what an earlier write to the path left, as a linked file must not be overwritten.
+     */
+    private Path clear(String path) throws IOException {
+        Path destination = generation.resolve(OutputSink.relative(path));
+        Files.deleteIfExists(destination);
+        return destination;
+    }
+
+    private IOException failed(IOException e) {
+        failed.incrementAndGet();
+        return e;
+    }
+
+    private Path previous(String path) {
+        if (previous == null) {
+            return null;
+        }
+        Path file = previous.resolve(OutputSink.relative(path));
+        return Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS) ? file : null;
+    }
+
+    private void link(Path destination, Path same) throws IOException {
+        Files.createDirectories(destination.getParent());
+        Files.createLink(destination, same);
+        linked.incrementAndGet();
+    }
+
+    /**
+     * Returns the numbers of the generations of the target, in ascending order.
+     */
+    private static List<Integer> generations(Path target) throws IOException {
+        Pattern name = Pattern.compile(Pattern.quote(target.getFileName().toString()) + "\\.(\\d+)");
+        List<Integer> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> siblings = Files.newDirectoryStream(target.getParent())) {
+            for (Path sibling : siblings) {
+                Matcher matcher = name.matcher(sibling.getFileName().toString());
+                if (matcher.matches() && Files.isDirectory(sibling, LinkOption.NOFOLLOW_LINKS)) {
+                    numbers.add(Integer.parseInt(matcher.group(1)));
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    @Override
+    public String toString() {
+        return generation.toString();
+    }
+}
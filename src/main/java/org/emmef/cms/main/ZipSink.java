@@ -0,0 +1,101 @@
+package org.emmef.cms.main;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams the site into a single ZIP archive, that can also be named as a JAR.
+ * <p>
+ * Entries cannot be replaced in a stream, so writing a path that is already in the archive fails, rather than
+ * giving the archive other content than a directory would get.
+ */
+@Slf4j
+public class ZipSink implements OutputSink {
+    private final Path archive;
+    private final FileTime entryTime;
+    private final ZipOutputStream output;
+    private final Set<String> entries = new HashSet<>();
+    private boolean entryOpen = false;
+
+    public ZipSink(@NonNull Path archive, FileTime entryTime) throws IOException {
+        this.archive = archive;
+        this.entryTime = entryTime;
+        this.output = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(archive)));
+    }
+
+    @Override
+    public synchronized void write(@NonNull String path, @NonNull String content) throws IOException {
+        startEntry(path, null);
+        output.write(content.getBytes(StandardCharsets.UTF_8));
+        output.closeEntry();
+    }
+
+    @Override
+    public synchronized void copy(@NonNull Path file, @NonNull String path) throws IOException {
+        startEntry(path, Files.getLastModifiedTime(file));
+        Files.copy(file, output);
+        output.closeEntry();
+    }
+
+    @Override
+    public synchronized OutputStream open(@NonNull String path) throws IOException {
+        startEntry(path, null);
+        entryOpen = true;
+        return new FilterOutputStream(output) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                output.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                synchronized (ZipSink.this) {
+                    if (entryOpen) {
+                        entryOpen = false;
+                        output.closeEntry();
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        output.close();
+        log.info("Wrote {} entries to {}", entries.size(), archive);
+    }
+
+    private void startEntry(String path, FileTime modified) throws IOException {
+        if (entryOpen) {
+            throw new IllegalStateException("Cannot write " + path + " to " + archive + " while another entry is open");
+        }
+        String name = OutputSink.relative(path);
+        if (!entries.add(name)) {
+            throw new IOException("Archive " + archive + " already contains " + name + ": entries cannot be replaced");
+        }
+        ZipEntry entry = new ZipEntry(name);
+        FileTime time = entryTime != null ? entryTime : modified;
+        if (time != null) {
+            entry.setLastModifiedTime(time);
+        }
+        output.putNextEntry(entry);
+    }
+
+    @Override
+    public String toString() {
+        return archive.toString();
+    }
+}
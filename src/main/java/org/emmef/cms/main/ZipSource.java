@@ -0,0 +1,47 @@
+package org.emmef.cms.main;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Reads the source from a ZIP archive through the zip file system provider of the JDK.
+ */
+@Slf4j
+public class ZipSource extends ScannedSource {
+    private final Path archive;
+    private final FileSystem fileSystem;
+
+    private ZipSource(Path archive, FileSystem fileSystem, List<SourceFile> files) {
+        super(files);
+        this.archive = archive;
+        this.fileSystem = fileSystem;
+        log.info("Scanned {} files in archive {}", getFiles().size(), archive);
+    }
+
+    public static ZipSource open(@NonNull Path archive) throws IOException {
+        FileSystem fileSystem = FileSystems.newFileSystem(archive, (ClassLoader) null);
+        try {
+            return new ZipSource(archive, fileSystem, DirectorySource.scan(fileSystem.getPath("/")));
+        }
+        catch (IOException | RuntimeException e) {
+            fileSystem.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        fileSystem.close();
+    }
+
+    @Override
+    public String toString() {
+        return archive.toString();
+    }
+}
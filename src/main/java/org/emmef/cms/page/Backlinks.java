@@ -0,0 +1,151 @@
+package org.emmef.cms.page;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.ImmutableIntArray;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+
+/**
+ * Reverse index of the links between pages, built in one pass over the page references after the pages were read.
+ * <p>
+ * Pages are numbered in the order they are given. Links are collected per source page in a flat array and then
+ * sorted by target with a counting sort, so that the pages that link to page {@code p} are
+ * {@code sources[sourceStart[p]]} up to {@code sources[sourceStart[p + 1]]}. Both steps are linear in the number
+ * of links. A link to an element counts as a link to the page that contains it. Links of a page to itself and
+ * repeated links are left out.
+ */
+@Slf4j
+public class Backlinks {
+    private final PageRecord[] pages;
+    private final Map<PageRecord, Integer> numbers;
+    private final int[] targetStart;
+    private final int[] targets;
+    private final int[] sourceStart;
+    private final int[] sources;
+
+    /**
+     * Builds the index. If pages share an identifier, links to it go to the first of them.
+     */
+    public static Backlinks build(@NonNull Collection<PageRecord> pages) {
+        return new Backlinks(pages.toArray(new PageRecord[0]));
+    }
+
+    private Backlinks(PageRecord[] pages) {
+        int size = pages.length;
+        this.pages = pages;
+        this.numbers = new IdentityHashMap<>();
+        Map<UUID, Integer> byId = new HashMap<>();
+        for (int page = 0; page < size; page++) {
+            numbers.put(pages[page], page);
+            byId.putIfAbsent(pages[page].getId(), page);
+        }
+        for (int page = 0; page < size; page++) {
+            for (UUID element : pages[page].getIdContentMap().keySet()) {
+                byId.putIfAbsent(element, page);
+            }
+        }
+
+        targetStart = new int[size + 1];
+        ImmutableIntArray.Builder links = ImmutableIntArray.builder();
+        int[] lastSource = new int[size];
+        Arrays.fill(lastSource, -1);
+        int count = 0;
+        for (int source = 0; source < size; source++) {
+            for (UUID reference : pages[source].getReferencedIds()) {
+                Integer target = byId.get(reference);
+                if (target != null && target != source && lastSource[target] != source) {
+                    lastSource[target] = source;
+                    links.add(target);
+                    count++;
+                }
+            }
+            targetStart[source + 1] = count;
+        }
+        targets = links.build().toArray();
+
+        sourceStart = new int[size + 1];
+        for (int target : targets) {
+            sourceStart[target + 1]++;
+        }
+        for (int page = 0; page < size; page++) {
+            sourceStart[page + 1] += sourceStart[page];
+        }
+        sources = new int[targets.length];
+        int[] next = Arrays.copyOf(sourceStart, size);
+        for (int source = 0; source < size; source++) {
+            for (int link = targetStart[source]; link < targetStart[source + 1]; link++) {
+                sources[next[targets[link]]++] = source;
+            }
+        }
+    }
+
+    public int getLinkCount() {
+        return targets.length;
+    }
+
+    /**
+     * Returns the pages that link to a page, sorted by {@link PageRecord#COMPARE_BY_NAME}.
+     */
+    public List<PageRecord> getBacklinks(@NonNull PageRecord page) {
+        Integer number = numbers.get(page);
+        if (number == null) {
+            return Collections.emptyList();
+        }
+        List<PageRecord> result = new ArrayList<>(sourceStart[number + 1] - sourceStart[number]);
+        for (int link = sourceStart[number]; link < sourceStart[number + 1]; link++) {
+            result.add(pages[sources[link]]);
+        }
+        result.sort(PageRecord.COMPARE_BY_NAME);
+        return result;
+    }
+
+    /**
+     * Returns the pages that cannot be reached from the index page, or from the root pages if there is no
+     * index page, by following links and navigation.
+     */
+    public List<PageRecord> findOrphans() {
+        int size = pages.length;
+        boolean[] reached = new boolean[size];
+        int[] queue = new int[size];
+        int tail = 0;
+        for (int page = 0; page < size; page++) {
+            if (pages[page].isIndex()) {
+                reached[page] = true;
+                queue[tail++] = page;
+            }
+        }
+        if (tail == 0) {
+            for (int page = 0; page < size; page++) {
+                if (pages[page].getParent() == null && !pages[page].isDuplicate()) {
+                    reached[page] = true;
+                    queue[tail++] = page;
+                }
+            }
+        }
+        for (int head = 0; head < tail; head++) {
+            int page = queue[head];
+            for (int link = targetStart[page]; link < targetStart[page + 1]; link++) {
+                if (!reached[targets[link]]) {
+                    reached[targets[link]] = true;
+                    queue[tail++] = targets[link];
+                }
+            }
+            for (PageRecord target : pages[page].getNavigationTargets()) {
+                Integer number = numbers.get(target);
+                if (number != null && !reached[number]) {
+                    reached[number] = true;
+                    queue[tail++] = number;
+                }
+            }
+        }
+        ImmutableList.Builder<PageRecord> orphans = ImmutableList.builder();
+        for (int page = 0; page < size; page++) {
+            if (!reached[page]) {
+                orphans.add(pages[page]);
+            }
+        }
+        return orphans.build();
+    }
+}
@@ -0,0 +1,164 @@
+package org.emmef.cms.page;
+
+import com.google.common.collect.ImmutableList;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+import java.util.*;
+
+/**
+ * Paginated index pages for the lists of children, and of root pages, that are longer than the navigation
+ * limit, so that navigation can show a window of such a list and link to the index for the rest.
+ * <p>
+ * The index of the children of a page is named after the file name of the page, like
+ * {@code ./children/<page>/1.html}, {@code ./children/<page>/2.html} and so on, and the index of the root
+ * pages is {@code ./children/1.html} and so on. Every index page lists {@value #PAGE_SIZE} pages. If a page
+ * already has one of those file names, which can happen in the hierarchical layout, the directory gets a
+ * sequence number, like {@code ./children-1/1.html}.
+ */
+@Slf4j
+public class ChildIndexPages {
+    public static final int PAGE_SIZE = 100;
+    private static final String DIRECTORY = "./children/";
+    private static final String HTML_SUFFIX = ".html";
+
+    /**
+     * Maximum number of links in a navigation list.
+     */
+    @Getter
+    private final int limit;
+    private final Map<PageRecord, String> directories;
+    private final String rootDirectory;
+    private final ImmutableList<PageRecord> listings;
+
+    private ChildIndexPages(int limit, Map<PageRecord, String> directories, String rootDirectory, ImmutableList<PageRecord> listings) {
+        this.limit = limit;
+        this.directories = directories;
+        this.rootDirectory = rootDirectory;
+        this.listings = listings;
+    }
+
+    /**
+     * Creates the index pages for the lists that are longer than {@code limit}, for pages that have file names,
+     * with file names that no page in {@code slugs} has.
+     */
+    public static ChildIndexPages create(@NonNull Collection<PageRecord> pages, @NonNull SlugRegistry slugs, int limit, @NonNull OutputLayout layout) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Navigation limit must be positive: " + limit);
+        }
+        Map<PageRecord, String> directories = new IdentityHashMap<>();
+        ImmutableList.Builder<PageRecord> listings = ImmutableList.builder();
+        Set<String> claimed = new HashSet<>();
+        // Root pages share their list of siblings
+        List<PageRecord> roots = Collections.emptyList();
+        for (PageRecord page : pages) {
+            if (page.getParent() == null && page.getSiblings().size() > roots.size()) {
+                roots = page.getSiblings();
+            }
+        }
+        ImmutableList<PageRecord> rootList = ImmutableList.copyOf(roots);
+        String rootDirectory = null;
+        if (rootList.size() > limit) {
+            rootDirectory = claim(claimed, slugs, DIRECTORY, countOf(rootList));
+            addListings(listings, null, rootList, rootDirectory, rootList, layout);
+        }
+        // Directories are claimed in the order of the file names, so every build names them the same
+        List<PageRecord> parents = new ArrayList<>();
+        for (PageRecord page : pages) {
+            if (page.getChildren().size() > limit) {
+                parents.add(page);
+            }
+        }
+        parents.sort(Comparator.comparing(PageRecord::getDynamicFilename));
+        for (PageRecord page : parents) {
+            List<PageRecord> children = page.getChildren();
+            String filename = page.getDynamicFilename();
+            String directory = claim(claimed, slugs, DIRECTORY + filename.substring(PageRecord.ROOT_PREFIX.length(), filename.length() - HTML_SUFFIX.length()) + "/", countOf(children));
+            directories.put(page, directory);
+            addListings(listings, page, children, directory, rootList, layout);
+        }
+        ChildIndexPages result = new ChildIndexPages(limit, directories, rootDirectory, listings.build());
+        log.info("Created {} child index pages for {} long lists", result.listings.size(), directories.size() + (rootDirectory != null ? 1 : 0));
+        return result;
+    }
+
+    /**
+     * Returns the index pages, that still have to be written.
+     */
+    public List<PageRecord> getListings() {
+        return listings;
+    }
+
+    /**
+     * Returns the file name of the index page that lists the page at {@code position} in the children of
+     * {@code parent}, or in the root pages if that is {@code null}, or {@code null} if that list has no index.
+     */
+    public String getFilename(PageRecord parent, int position) {
+        String directory = parent != null ? directories.get(parent) : rootDirectory;
+        return directory != null ? createFilename(directory, position / PAGE_SIZE + 1) : null;
+    }
+
+    private static void addListings(ImmutableList.Builder<PageRecord> listings, PageRecord parent, List<PageRecord> pages,
+                                    String directory, ImmutableList<PageRecord> siblings, OutputLayout layout) {
+        int count = countOf(pages);
+        String name = parent != null ? "Pages in " + parent.getTitle() : "Top pages";
+        for (int number = 1; number <= count; number++) {
+            List<PageRecord> listed = pages.subList((number - 1) * PAGE_SIZE, Math.min(number * PAGE_SIZE, pages.size()));
+            Document document = ListingPages.createDocument(
+                    "scms-children:" + (parent != null ? parent.getId() : "root") + ":" + number,
+                    count > 1 ? name + " (" + number + "/" + count + ")" : name,
+                    listed);
+            Element body = document.body();
+            if (parent != null) {
+                body.appendElement("p")
+                        .attr("class", "child-index-parent")
+                        .appendElement("a")
+                                .attr("href", parent.getDynamicFilename())
+                                .text(parent.getTitle());
+            }
+            Element list = body.appendElement("ul").attr("class", "child-index");
+            for (PageRecord page : listed) {
+                list.appendElement("li")
+                        .attr("class", "child-index-item")
+                        .appendElement("a")
+                                .attr("href", page.getDynamicFilename())
+                                .text(page.getTitle());
+            }
+            ListingPages.addPagination(body, "child-index-pagination", (page) -> createFilename(directory, page), number, count, "Previous", "Next");
+            listings.add(ListingPages.createPage(document, pages.get(0).getRootPath(), createFilename(directory, number), siblings, layout));
+        }
+    }
+
+    private static String createFilename(String directory, int number) {
+        return directory + number + HTML_SUFFIX;
+    }
+
+    private static int countOf(List<PageRecord> pages) {
+        return (pages.size() + PAGE_SIZE - 1) / PAGE_SIZE;
+    }
+
+    /**
+     * Returns the directory, with a sequence number if a page has the file name of one of its index pages or
+     * another list has it.
+     */
+    private static String claim(Set<String> claimed, SlugRegistry slugs, String directory, int count) {
+        String base = directory.substring(0, directory.length() - 1);
+        String candidate = directory;
+        for (int sequence = 1; !isFree(slugs, candidate, count) || !claimed.add(candidate); sequence++) {
+            candidate = base + "-" + sequence + "/";
+        }
+        return candidate;
+    }
+
+    private static boolean isFree(SlugRegistry slugs, String directory, int count) {
+        for (int number = 1; number <= count; number++) {
+            if (slugs.getPage(createFilename(directory, number)) != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,80 @@
+package org.emmef.cms.page;
+
+import lombok.extern.slf4j.Slf4j;
+import org.joda.time.DateTimeZone;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Supplies dates for pages that do not declare them in their meta data.
+ */
+public interface FileDates {
+    /**
+     * Takes dates from the file system, falling back to the current time if they cannot be read.
+     */
+    FileDates FILE_SYSTEM = new FileSystemDates();
+
+    /**
+     * Supplies no dates at all, so that only dates from the page content are used.
+     */
+    FileDates NONE = new FileDates() {
+        @Override
+        public FileTime getCreationTime(Path path) {
+            return null;
+        }
+
+        @Override
+        public FileTime getLastModified(Path path) {
+            return null;
+        }
+
+        @Override
+        public DateTimeZone getZone() {
+            return DateTimeZone.UTC;
+        }
+    };
+
+    /**
+     * Returns the creation time of the file or {@code null} if this source has none.
+     */
+    FileTime getCreationTime(Path path);
+
+    /**
+     * Returns the last modification time of the file or {@code null} if this source has none.
+     */
+    FileTime getLastModified(Path path);
+
+    /**
+     * Returns the time zone for dates in the page content that do not specify one.
+     */
+    default DateTimeZone getZone() {
+        return DateTimeZone.getDefault();
+    }
+
+    @Slf4j
+    class FileSystemDates implements FileDates {
+        @Override
+        public FileTime getCreationTime(Path path) {
+            try {
+                return Files.readAttributes(path, BasicFileAttributes.class).creationTime();
+            } catch (IOException | UnsupportedOperationException | ClassCastException e) {
+                log.warn("Cannot determine creation time for {}", path);
+                return FileTime.fromMillis(System.currentTimeMillis());
+            }
+        }
+
+        @Override
+        public FileTime getLastModified(Path path) {
+            try {
+                return Files.readAttributes(path, BasicFileAttributes.class).lastModifiedTime();
+            } catch (IOException e) {
+                log.warn("Cannot determine modified time {}", path);
+                return FileTime.fromMillis(System.currentTimeMillis());
+            }
+        }
+    }
+}
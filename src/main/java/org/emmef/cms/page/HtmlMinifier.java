@@ -0,0 +1,213 @@
+package org.emmef.cms.page;
+
+import com.google.common.collect.ImmutableSet;
+import lombok.NonNull;
+import org.jsoup.nodes.*;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
+
+import java.util.regex.Pattern;
+
+/**
+ * Serializes a document without pretty-printing and with as few bytes as the HTML syntax allows
+ * without changing how the page renders.
+ * <p>
+ * Runs of whitespace are collapsed to a single space, except inside elements that preserve whitespace,
+ * and whitespace is removed where the content model does not allow text. Comments are removed, except
+ * conditional comments. Optional closing tags are omitted and attribute values are only quoted when needed.
+ */
+public class HtmlMinifier {
+    private static final ImmutableSet<String> PRESERVE_WHITESPACE = ImmutableSet.of("pre", "textarea", "script", "style", "listing", "plaintext");
+    private static final ImmutableSet<String> NO_TEXT_CONTENT = ImmutableSet.of(
+            "html", "head", "table", "thead", "tbody", "tfoot", "tr", "colgroup", "ul", "ol", "dl", "select", "optgroup", "datalist");
+    private static final ImmutableSet<String> VOID_ELEMENTS = ImmutableSet.of(
+            "area", "base", "br", "col", "embed", "hr", "img", "input", "link", "meta", "param", "source", "track", "wbr");
+    private static final ImmutableSet<String> CLOSES_PARAGRAPH = ImmutableSet.of(
+            "address", "article", "aside", "blockquote", "details", "div", "dl", "fieldset", "figcaption", "figure",
+            "footer", "form", "h1", "h2", "h3", "h4", "h5", "h6", "header", "hgroup", "hr", "main", "menu", "nav",
+            "ol", "p", "pre", "section", "table", "ul");
+    private static final ImmutableSet<String> PARAGRAPH_NEEDS_CLOSE_IN = ImmutableSet.of(
+            "a", "audio", "del", "ins", "map", "noscript", "video");
+    private static final Pattern WHITESPACE = Pattern.compile("[ \\t\\n\\f\\r]+");
+    private static final Pattern UNQUOTED_VALUE = Pattern.compile("^[^ \\t\\n\\f\\r\"'=<>`]+$");
+
+    public static String minify(@NonNull Document document) {
+        Document.OutputSettings settings = document.outputSettings();
+        settings.prettyPrint(false);
+        StringBuilder output = new StringBuilder();
+        NodeTraversor.traverse(new Serializer(output, settings), document);
+        return output.toString();
+    }
+
+    private static class Serializer implements NodeVisitor {
+        private final StringBuilder output;
+        private final Document.OutputSettings settings;
+        private int preserveDepth = 0;
+        private boolean afterSpace = false;
+
+        Serializer(StringBuilder output, Document.OutputSettings settings) {
+            this.output = output;
+            this.settings = settings;
+        }
+
+        @Override
+        public void head(Node node, int depth) {
+            if (node instanceof Document) {
+                return;
+            }
+            if (node instanceof Element) {
+                Element element = (Element) node;
+                if (PRESERVE_WHITESPACE.contains(element.normalName())) {
+                    preserveDepth++;
+                }
+                startTag(element);
+            }
+            else if (node instanceof DataNode) {
+                output.append(((DataNode) node).getWholeData());
+            }
+            else if (node instanceof TextNode) {
+                if (!isDropped(node)) {
+                    String text = ((TextNode) node).getWholeText();
+                    if (preserveDepth == 0) {
+                        text = WHITESPACE.matcher(text).replaceAll(" ");
+                        // adjacent text nodes
+                        if (afterSpace && text.startsWith(" ")) {
+                            text = text.substring(1);
+                        }
+                    }
+                    output.append(org.jsoup.nodes.Entities.escape(text, settings));
+                    if (!text.isEmpty()) {
+                        afterSpace = text.endsWith(" ");
+                    }
+                }
+                return;
+            }
+            else if (node instanceof Comment) {
+                if (!isDropped(node)) {
+                    output.append("<!--").append(((Comment) node).getData()).append("-->");
+                }
+            }
+            else {
+                output.append(node.outerHtml());
+            }
+            afterSpace = false;
+        }
+
+        @Override
+        public void tail(Node node, int depth) {
+            if (node instanceof Element && !(node instanceof Document)) {
+                afterSpace = false;
+                Element element = (Element) node;
+                String name = element.normalName();
+                if (PRESERVE_WHITESPACE.contains(name)) {
+                    preserveDepth--;
+                }
+                if (!VOID_ELEMENTS.contains(name) && !canOmitEndTag(element)) {
+                    output.append("</").append(element.tagName()).append('>');
+                }
+            }
+        }
+
+        private void startTag(Element element) {
+            output.append('<').append(element.tagName());
+            for (Attribute attribute : element.attributes()) {
+                output.append(' ').append(attribute.getKey());
+                String value = attribute.getValue();
+                if (value.isEmpty()) {
+                    continue;
+                }
+                String escaped = org.jsoup.nodes.Entities.escape(value, settings);
+                output.append('=');
+                if (UNQUOTED_VALUE.matcher(escaped).matches()) {
+                    output.append(escaped);
+                }
+                else {
+                    output.append('"').append(escaped.replace("\"", "&quot;")).append('"');
+                }
+            }
+            output.append('>');
+        }
+    }
+
+    /**
+     * Returns whether the node is left out of the output: comments, except conditional ones, and whitespace
+     * in elements that cannot contain text.
+     */
+    private static boolean isDropped(Node node) {
+        if (node instanceof Comment) {
+            return !((Comment) node).getData().startsWith("[if");
+        }
+        if (node instanceof TextNode) {
+            Node parent = node.parentNode();
+            return parent instanceof Element
+                    && NO_TEXT_CONTENT.contains(((Element) parent).normalName())
+                    && ((TextNode) node).isBlank();
+        }
+        return false;
+    }
+
+    private static Node nextOutputSibling(Node node) {
+        Node next = node.nextSibling();
+        while (next != null && isDropped(next)) {
+            next = next.nextSibling();
+        }
+        return next;
+    }
+
+    private static boolean nextIs(Node next, String... names) {
+        if (!(next instanceof Element)) {
+            return false;
+        }
+        String name = ((Element) next).normalName();
+        for (String candidate : names) {
+            if (candidate.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Applies the rules for optional end tags from the HTML specification.
+     */
+    private static boolean canOmitEndTag(Element element) {
+        Node next = nextOutputSibling(element);
+        switch (element.normalName()) {
+            case "html":
+            case "body":
+                return next == null;
+            case "head":
+            case "colgroup":
+                return next == null || next instanceof Element;
+            case "li":
+                return next == null || nextIs(next, "li");
+            case "dt":
+                return nextIs(next, "dt", "dd");
+            case "dd":
+                return next == null || nextIs(next, "dt", "dd");
+            case "p":
+                if (next == null) {
+                    Element parent = element.parent();
+                    return parent != null && !PARAGRAPH_NEEDS_CLOSE_IN.contains(parent.normalName());
+                }
+                return next instanceof Element && CLOSES_PARAGRAPH.contains(((Element) next).normalName());
+            case "option":
+                return next == null || nextIs(next, "option", "optgroup");
+            case "optgroup":
+                return next == null || nextIs(next, "optgroup");
+            case "thead":
+                return nextIs(next, "tbody", "tfoot");
+            case "tbody":
+                return next == null || nextIs(next, "tbody", "tfoot");
+            case "tfoot":
+                return next == null;
+            case "tr":
+                return next == null || nextIs(next, "tr");
+            case "td":
+            case "th":
+                return next == null || nextIs(next, "td", "th");
+            default:
+                return false;
+        }
+    }
+}
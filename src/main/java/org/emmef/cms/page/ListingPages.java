@@ -0,0 +1,102 @@
+package org.emmef.cms.page;
+
+import com.google.common.collect.ImmutableList;
+import lombok.NonNull;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Helpers for generated pages that list other pages, like tag and child index pages.
+ * <p>
+ * A listing page is read from a generated document, so it is rendered like any other page. It has no
+ * permanent link, like duplicate pages, and is dated after the most recent of the pages it lists. Links in
+ * the generated content are written relative to the output root and rebased to the listing page.
+ */
+final class ListingPages {
+    private ListingPages() {
+        // helpers
+    }
+
+    /**
+     * Creates the document of a listing page with a title, where the page identifier is derived from {@code name}.
+     */
+    static Document createDocument(@NonNull String name, @NonNull String title, @NonNull List<PageRecord> pages) {
+        Document document = Jsoup.parse("<!DOCTYPE html><html><head></head><body></body></html>");
+        Element head = document.head();
+        head.appendElement("title").text(title);
+        head.appendElement("meta")
+                .attr("name", "scms-uuid")
+                .attr("value", UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)).toString());
+        head.appendElement("meta")
+                .attr("name", "scms-parent-uuid")
+                .attr("value", "none");
+        head.appendElement("meta")
+                .attr("name", "scms-published-date")
+                .attr("value", latest(pages, PageRecord::getTimePublished).toString());
+        head.appendElement("meta")
+                .attr("name", "scms-republish-date")
+                .attr("value", latest(pages, PageRecord::getTimeModified).toString());
+        document.body().appendElement("h1").text(title);
+        return document;
+    }
+
+    /**
+     * Adds links to the previous and next page of a listing of {@code count} pages, with classes that start
+     * with {@code baseClass}.
+     */
+    static void addPagination(@NonNull Element body, @NonNull String baseClass, @NonNull IntFunction<String> filenames,
+                              int number, int count, @NonNull String previous, @NonNull String next) {
+        if (count <= 1) {
+            return;
+        }
+        Element pagination = body.appendElement("div").attr("class", baseClass);
+        if (number > 1) {
+            pagination.appendElement("a")
+                    .attr("class", baseClass + "-previous")
+                    .attr("href", filenames.apply(number - 1))
+                    .text(previous);
+        }
+        pagination.appendElement("span")
+                .attr("class", baseClass + "-current")
+                .text(number + " / " + count);
+        if (number < count) {
+            pagination.appendElement("a")
+                    .attr("class", baseClass + "-next")
+                    .attr("href", filenames.apply(number + 1))
+                    .text(next);
+        }
+    }
+
+    /**
+     * Creates the listing page from its document, with the siblings in its navigation.
+     */
+    static PageRecord createPage(@NonNull Document document, @NonNull Path rootPath, @NonNull String filename,
+                                 @NonNull ImmutableList<PageRecord> siblings, @NonNull OutputLayout layout) {
+        PageRecord listing = new PageRecord(document, rootPath.resolve(filename.substring(PageRecord.ROOT_PREFIX.length())), rootPath, FileDates.NONE);
+        listing.markDuplicate();
+        listing.setSiblings(siblings);
+        listing.setOutputPath(layout, filename);
+        listing.rebaseRelativeLinks();
+        return listing;
+    }
+
+    private static FileTime latest(List<PageRecord> pages, Function<PageRecord, FileTime> time) {
+        FileTime latest = null;
+        for (PageRecord page : pages) {
+            FileTime candidate = time.apply(page);
+            if (latest == null || candidate.compareTo(latest) > 0) {
+                latest = candidate;
+            }
+        }
+        return latest;
+    }
+}
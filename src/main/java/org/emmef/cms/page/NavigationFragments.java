@@ -0,0 +1,51 @@
+package org.emmef.cms.page;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import lombok.NonNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Navigation links that pages share, written once to a file that is named after a hash of its content, so that
+ * it can be cached indefinitely, instead of into every page.
+ * <p>
+ * All children of a parent have the same siblings, so a section with {@code n} pages would otherwise contain
+ * {@code n} copies of the same {@code n} links. Pages refer to the file with a placeholder that the script
+ * {@value #SCRIPT} replaces by its content, leaving out the link to the page itself. Links in a file are relative
+ * to the pages that include it, so the content is rendered once per list of pages and link prefix.
+ */
+public class NavigationFragments {
+    /**
+     * Lists with fewer links are cheaper to write into the page than to load.
+     */
+    public static final int MIN_LINKS = 10;
+    public static final String DIRECTORY = "./navigation/";
+    public static final String SCRIPT = DIRECTORY + "navigation.js";
+    private static final int HASH_LENGTH = 10;
+
+    private final Map<List<PageRecord>, Map<String, String>> paths = new IdentityHashMap<>();
+    private final Map<String, String> fragments = new LinkedHashMap<>();
+
+    /**
+     * Returns the file that contains the links to the pages, relative to pages with the link prefix, rendering
+     * them with {@code content} if that did not happen before.
+     */
+    synchronized String getPath(@NonNull List<PageRecord> pages, @NonNull String linkPrefix, @NonNull Supplier<String> content) {
+        return paths.computeIfAbsent(pages, (key) -> new HashMap<>()).computeIfAbsent(linkPrefix, (key) -> {
+            String html = content.get();
+            String path = DIRECTORY + Hashing.sha256().hashString(html, StandardCharsets.UTF_8).toString().substring(0, HASH_LENGTH) + ".html";
+            fragments.putIfAbsent(path, html);
+            return path;
+        });
+    }
+
+    /**
+     * Returns the content of the files by path.
+     */
+    public synchronized Map<String, String> getFragments() {
+        return ImmutableMap.copyOf(fragments);
+    }
+}
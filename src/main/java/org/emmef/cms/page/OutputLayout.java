@@ -0,0 +1,32 @@
+package org.emmef.cms.page;
+
+import com.google.common.hash.Hashing;
+import lombok.NonNull;
+
+import java.util.UUID;
+
+public enum OutputLayout {
+    /**
+     * All pages and permanent links are written to the target directory.
+     */
+    FLAT {
+        @Override
+        public String getPermanentFilename(@NonNull UUID id) {
+            return "./" + id + ".html";
+        }
+    },
+    /**
+     * Pages are written to directories that mirror the page hierarchy and permanent links to
+     * two levels of directories named after a hash of the page identifier, like {@code ab/cd/<uuid>.html}.
+     */
+    HIERARCHICAL {
+        @Override
+        public String getPermanentFilename(@NonNull UUID id) {
+            int hash = Hashing.murmur3_32_fixed().hashUnencodedChars(id.toString()).asInt();
+            String fanOut = String.format("%04x", hash & 0xffff);
+            return "./" + fanOut.substring(0, 2) + "/" + fanOut.substring(2, 4) + "/" + id + ".html";
+        }
+    };
+
+    public abstract String getPermanentFilename(@NonNull UUID id);
+}
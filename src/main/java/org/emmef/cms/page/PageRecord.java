@@ -1,6 +1,7 @@
 package org.emmef.cms.page;
 
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Multimap;
 import lombok.*;
@@ -18,24 +19,19 @@ import org.jsoup.select.NodeVisitor;
 import java.io.IOException;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 import java.util.regex.Pattern;
 
 @Slf4j
 public class PageRecord {
-    private static final String reservedChars = "|\\?*<:>+[]/";
-    private static final int MAX_NAME_LENGTH = 255;
-    private static final String HTML_SUFFIX = ".html";
-    private static final int MAX_GENERATED_LENGTH = MAX_NAME_LENGTH - HTML_SUFFIX.length();
-
     public static final String PAGE_SCHEME = "page:";
     public static final String ELEMENT_SCHEME = "elem:";
     public static final String REF_SCHEME = "ref:";
@@ -47,6 +43,10 @@ public class PageRecord {
     public static final String SUMMARY_TITLE_ID = "article-summary-title";
     public static final String LATEST_ARTICLE_ELEMENT = "section";
     public static final String LATEST_ARTICLE_ID = "latest-articles";
+    public static final String RELATED_ARTICLE_ELEMENT = "section";
+    public static final String RELATED_ARTICLE_ID = "related-articles";
+    public static final String BACKLINKS_ELEMENT = "section";
+    public static final String BACKLINKS_ID = "backlinks";
 
     public static final Predicate<Element> META = NodeHelper.elementByNameCaseInsensitive("meta");
     public static final Predicate<Element> META_UUID = META.and(ByAttributeValue.literal("name", "scms-uuid", true));
@@ -55,6 +55,7 @@ public class PageRecord {
     public static final Predicate<Element> META_PUBLISH_DATE = META.and(ByAttributeValue.literal("name", "scms-published-date", true));
     public static final Predicate<Element> META_REPUBLISH_DATE = META.and(ByAttributeValue.literal("name", "scms-republish-date", true));
     public static final Predicate<Element> META_INDEX = META.and(ByAttributeValue.literal("name", "scms-is-index", true));
+    public static final Predicate<Element> META_TAGS = META.and(ByAttributeValue.literal("name", "scms-tags", true));
 
     public static final Predicate<Element> ANCHOR = NodeHelper.elementByNameCaseInsensitive("a");
     public static final Predicate<Element> ANCHOR_PAGE = ANCHOR.and(ByAttributeValue.startsWith("href", PAGE_SCHEME));
@@ -63,10 +64,24 @@ public class PageRecord {
 
     public static final Predicate<Element> TITLE = NodeHelper.elementByNameCaseInsensitive("title");
     public static final Pattern NULL_PATTERN = Pattern.compile("^(null|none|root)$", Pattern.CASE_INSENSITIVE);
+    public static final Pattern URL_SCHEME_PATTERN = Pattern.compile("^[a-z][a-z0-9+.\\-]*:", Pattern.CASE_INSENSITIVE);
+    public static final String ROOT_PREFIX = "./";
+    public static final String EMMEF_UTIL_JS = "./emmef-util.js";
     public static final String NBSP = "" + Entities.NBSP;
     public static final String STYLE_CSS = "./style/simple-static-cms.css";
     public static final String CSS_TARGET_TYPE = "simple-static-cms-style-type";
     public static final String PAGE_COPYRIGHT = "copyright";
+    public static final String ASSET_PATHS = "asset-paths";
+    public static final String MINIFY = "minify";
+    public static final String COMPACT_NAVIGATION = "compact-navigation";
+    public static final String STYLE_SHEET = "style-sheet";
+    public static final String OPTIMIZE_LOADING = "optimize-loading";
+    public static final String FEED_PATH = "feed-path";
+    public static final String NAVIGATION_FRAGMENTS = "navigation-fragments";
+    public static final String CHILD_INDEX = "child-index";
+    public static final String FONTS_CSS = "https://fonts.googleapis.com/css?family=Open+Sans:400italic,600italic,400,600";
+    public static final String MATHJAX_JS = "https://cdnjs.cloudflare.com/ajax/libs/mathjax/2.7.1/MathJax.js?config=TeX-AMS-MML_HTMLorMML";
+    public static final int EAGER_ARTICLE_MEDIA = 1;
     public static final String REFERENCE_LIST = "reference-list";
     public static final String NOTE_NUMBER = "note-number";
 
@@ -76,9 +91,12 @@ public class PageRecord {
     @NonNull
     @Getter
     private final String title;
+    private final String sortKey;
     private final Element header;
     private final Map<String, Element> notes = new HashMap<>();
     private final Element latestArticlesElement;
+    private final Element relatedArticlesElement;
+    private final Element backlinksElement;
     @Getter
     private final String summaryTitle;
     @NonNull
@@ -103,27 +121,34 @@ public class PageRecord {
     private final Multimap<UUID, Element> pageRefNodes;
     @Getter
     private final boolean math;
+    @NonNull
+    @Getter
+    private final ImmutableList<String> tags;
     private final Element referenceList;
 //    @Getter
     private boolean index;
 
     @Getter
     private PageRecord parent = null;
-    private final SortedSet<PageRecord> children = createPageSet();
-    private SortedSet<PageRecord> siblings = null;
+    private List<PageRecord> children = new ArrayList<>();
+    private List<PageRecord> siblings = null;
     private String dynamicFilename = null;
+    private OutputLayout layout = OutputLayout.FLAT;
+    private String linkPrefix = ROOT_PREFIX;
     private boolean duplicate = false;
+    private SiteTree tree = null;
+    private int treeNode = -1;
     @Getter
-    private final FileTime timeModified;
+    private FileTime timeModified;
     @Getter
-    private final FileTime timePublished;
+    private FileTime timePublished;
 
     public static final Comparator<PageRecord> COMPARE_BY_NAME = (p1, p2) -> {
-        int i = p1.title.compareToIgnoreCase(p2.title);
+        int i = p1.sortKey.compareTo(p2.sortKey);
         if (i != 0) {
             return i;
         }
-        return p1.id.hashCode() - p2.id.hashCode();
+        return p1.id.compareTo(p2.id);
     };
 
     public static final Comparator<PageRecord> createDateComparator(long mostRecentCreated, long mostRecentModified) {
@@ -138,7 +163,7 @@ public class PageRecord {
                 double modValue = modP1 - modP2;
 
                 double value = createValue * 10 + modValue;
-                return value < 0 ? -1 : value > 0 ? 1 : p1.id.hashCode() - p2.id.hashCode();
+                return value < 0 ? -1 : value > 0 ? 1 : p1.id.compareTo(p2.id);
             }
         };
     }
@@ -150,12 +175,23 @@ public class PageRecord {
     }
 
     public PageRecord(Document sourceDocument, Path path, Path rootPath) {
+        this(sourceDocument, path, rootPath, FileDates.FILE_SYSTEM);
+    }
+
+    /**
+     * Creates a page record, where dates that the page does not declare are taken from {@code dates}. If
+     * that has no dates either, the declared publish and republish dates substitute each other and pages
+     * without any dates get them through {@link #assignMissingDates(FileTime)}.
+     */
+    public PageRecord(Document sourceDocument, Path path, Path rootPath, @NonNull FileDates dates) {
         Node head = getNodeByTag(sourceDocument, "head", NodeExpectation.UNIQUE);
         FileTime modifiedTime;
         this.id = getIdentifier(head, META_UUID, "page identifier", null);
         this.title = getTitle(head);
+        this.sortKey = createSortKey(title);
         this.math = Boolean.parseBoolean(getMetaValue(head, META_MATH));
         this.index = Boolean.parseBoolean(getMetaValue(head, META_INDEX));
+        this.tags = getTags(head);
         if (index) {
             System.out.println("INDEX " + title);
         }
@@ -176,6 +212,8 @@ public class PageRecord {
         this.footer = this.document.createElement("footer");
         this.summaryTitle = handleSummaryTitle(sourceBody);
         GetFirst<Element> latestArticleRef = new GetFirst<>();
+        GetFirst<Element> relatedArticleRef = new GetFirst<>();
+        GetFirst<Element> backlinksRef = new GetFirst<>();
         GetFirst<String> summaryTitleRef = new GetFirst<>();
         NodeHelper.children(sourceBody).forEach(sourceNode -> {
             Node clone = sourceNode.clone();
@@ -190,9 +228,13 @@ public class PageRecord {
             }
             Element lae = getAcceptedTagAndIdElementOrNull(clone, LATEST_ARTICLE_ELEMENT, LATEST_ARTICLE_ID);
             latestArticleRef.accept(lae);
+            relatedArticleRef.accept(getAcceptedTagAndIdElementOrNull(clone, RELATED_ARTICLE_ELEMENT, RELATED_ARTICLE_ID));
+            backlinksRef.accept(getAcceptedTagAndIdElementOrNull(clone, BACKLINKS_ELEMENT, BACKLINKS_ID));
             article.appendChild(clone);
         });
         this.latestArticlesElement = latestArticleRef.getValue();
+        this.relatedArticlesElement = relatedArticleRef.getValue();
+        this.backlinksElement = backlinksRef.getValue();
 
         Multimap<UUID, Element> pageRefNodes = ArrayListMultimap.create();
 
@@ -212,22 +254,47 @@ public class PageRecord {
         }
         this.rootPath = rootPath;
 
-        this.timePublished = getFileTime(head, META_PUBLISH_DATE, (p) -> getCreationTime(p));
-        this.timeModified = getFileTime(head, META_REPUBLISH_DATE, (p) -> getFileLastModified(p));
+        this.timePublished = getFileTime(head, META_PUBLISH_DATE, META_REPUBLISH_DATE, dates::getCreationTime, dates);
+        this.timeModified = getFileTime(head, META_REPUBLISH_DATE, META_PUBLISH_DATE, dates::getLastModified, dates);
+
+    }
 
+    private FileTime getFileTime(Node head, Predicate<Element> metaDatePredicate, Predicate<Element> alternativeDatePredicate, Function<Path, FileTime> dateFunction, FileDates dates) {
+        FileTime time = getMetaFileTime(head, metaDatePredicate, dates);
+        if (time != null) {
+            return time;
+        }
+        time = dateFunction.apply(path);
+        return time != null ? time : getMetaFileTime(head, alternativeDatePredicate, dates);
     }
 
-    private FileTime getFileTime(Node head, Predicate<Element> metaDatePredicate, Function<Path, FileTime> dateFunction) {
+    private static FileTime getMetaFileTime(Node head, Predicate<Element> metaDatePredicate, FileDates dates) {
         String metaPublishedDate = getMetaValue(head, metaDatePredicate);
         if (metaPublishedDate != null) {
             try {
                 return FileTime.fromMillis(
-                        ISODateTimeFormat.dateTimeParser().parseDateTime(metaPublishedDate).toDate().getTime());
+                        ISODateTimeFormat.dateTimeParser().withZone(dates.getZone()).parseDateTime(metaPublishedDate).toDate().getTime());
             } catch (RuntimeException e) {
                 // No value for createTime
             }
         }
-        return dateFunction.apply(path);
+        return null;
+    }
+
+    public boolean hasDates() {
+        return timePublished != null && timeModified != null;
+    }
+
+    /**
+     * Assigns the dates that could not be determined when the page was read.
+     */
+    public void assignMissingDates(@NonNull FileTime time) {
+        if (timePublished == null) {
+            timePublished = time;
+        }
+        if (timeModified == null) {
+            timeModified = time;
+        }
     }
 
     private String handleSummaryTitle(Element sourceBody) {
@@ -264,46 +331,16 @@ public class PageRecord {
     }
 
     private Element collectReferences(Multimap<UUID, Element> pageRefNodes) {
-        List<String> referencesUrls = new ArrayList<>();
-        Element referencesElement = processReferences(article, pageRefNodes, referencesUrls);
-
-        if (referencesElement != null) {
-            Set<String> hadNotes = new HashSet<>();
-            int previousResolved = 0;
-            while (referencesUrls.size() != previousResolved) {
-                previousResolved = referencesUrls.size();
-
-                notes.forEach((url, n) -> {
-                    if (!hadNotes.contains(url) && referencesUrls.contains(NOTE_SCHEME + n.id())) {
-                        processReferences(n, pageRefNodes, referencesUrls);
-                        hadNotes.add(url);
-                    }
-                });
-            }
-        }
-        return referencesElement;
-    }
-
-    private FileTime getFileLastModified(Path path) {
-        FileTime time;
-        try {
-            time = Files.readAttributes(path, BasicFileAttributes.class).lastModifiedTime();
-        } catch (IOException e) {
-            time = FileTime.fromMillis(System.currentTimeMillis());
-            log.warn("Cannot determine modified time {}", this);
-        }
-        return time;
-    }
+        Map<String, String> referenceNumbers = new LinkedHashMap<>();
+        Deque<Element> citedNotes = new ArrayDeque<>();
+        AtomicReference<Element> referenceList = new AtomicReference<>();
 
-    private FileTime getCreationTime(Path path) {
-        FileTime time;
-        try {
-            time = Files.readAttributes(path, BasicFileAttributes.class).creationTime();
-        } catch (IOException | UnsupportedOperationException | ClassCastException e) {
-            time = FileTime.fromMillis(System.currentTimeMillis());
-            log.warn("Cannot determine creation time for {}", this);
+        processReferences(article, pageRefNodes, referenceNumbers, citedNotes, referenceList);
+        // A note is queued once, when it is numbered, so references in notes are resolved in a single pass
+        while (!citedNotes.isEmpty()) {
+            processReferences(citedNotes.poll(), pageRefNodes, referenceNumbers, citedNotes, referenceList);
         }
-        return time;
+        return referenceList.get();
     }
 
     @Override
@@ -317,7 +354,7 @@ public class PageRecord {
         pages.forEach((id,page) -> {
             String refPageTitle = page.getTitle();
             pageRefNodes.get(id).forEach((n -> {
-                n.attr("href", page.getDynamicFilename());
+                n.attr("href", linkTo(page.getDynamicFilename()));
                 elementTextReplacement(refPageTitle, n);
             }));
             toReplace.remove(id);
@@ -331,7 +368,7 @@ public class PageRecord {
                 if (page.getIdContentMap().containsKey(id)) {
                     String refElementText = page.getIdContentMap().get(id);
                     pageRefNodes.get(id).forEach(n -> {
-                        n.attr("href", page.getDynamicFilename() + "#" + id);
+                        n.attr("href", linkTo(page.getDynamicFilename()) + "#" + id);
                         elementTextReplacement(refElementText, n);
                     });
                     replaced = true;
@@ -344,12 +381,29 @@ public class PageRecord {
 
         toReplace.forEach((id) -> {
             pageRefNodes.get(id).forEach((n -> {
-                n.attr("href", "./" + id + ".html");
+                n.attr("href", linkTo(layout.getPermanentFilename(id)));
                 n.text("[NOT FOUND]");
             }));
         });
     }
 
+    /**
+     * Returns the identifiers of the pages and elements that this page refers to.
+     */
+    Set<UUID> getReferencedIds() {
+        return Collections.unmodifiableSet(pageRefNodes.keySet());
+    }
+
+    /**
+     * Returns the pages that the navigation of this page links to.
+     */
+    List<PageRecord> getNavigationTargets() {
+        List<PageRecord> targets = new ArrayList<>(getParents(false));
+        targets.addAll(getChildren());
+        targets.addAll(getSiblings());
+        return targets;
+    }
+
     private void elementTextReplacement(String refPageTitle, Element n) {
         String content = n.text();
         if (content == null || content.isEmpty()) {
@@ -375,11 +429,38 @@ public class PageRecord {
     }
 
     public boolean addChild(@NonNull PageRecord rec) {
+        checkChildrenNotFrozen();
         return children.add(rec);
     }
 
-    public SortedSet<PageRecord> getChildren() {
-        return Collections.unmodifiableSortedSet(children);
+    public boolean removeChild(@NonNull PageRecord rec) {
+        checkChildrenNotFrozen();
+        return children.remove(rec);
+    }
+
+    /**
+     * Sorts the children once and makes them immutable, after which they are shared as-is by
+     * navigation rendering and as siblings of each child.
+     */
+    void freezeChildren() {
+        if (!(children instanceof ImmutableList)) {
+            children = ImmutableList.sortedCopyOf(COMPARE_BY_NAME, children);
+        }
+    }
+
+    private void checkChildrenNotFrozen() {
+        if (children instanceof ImmutableList) {
+            throw new IllegalStateException(this + ": children cannot change after hierarchy was created");
+        }
+    }
+
+    void setTreeNode(@NonNull SiteTree tree, int node) {
+        this.tree = tree;
+        this.treeNode = node;
+    }
+
+    public List<PageRecord> getChildren() {
+        return children instanceof ImmutableList ? children : Collections.unmodifiableList(children);
     }
 
     public boolean isDuplicate() {
@@ -394,76 +475,238 @@ public class PageRecord {
         index = false;
     }
 
+    /**
+     * Returns the ancestors of this page, topmost first or, when reversed, nearest first.
+     * Pages outside the site tree, like duplicates, have no parents.
+     */
     public List<PageRecord> getParents(boolean reverse) {
-        List<PageRecord> list = new ArrayList<>();
-        PageRecord parent = this.parent;
-        while (parent != null) {
-            if (reverse) {
-                list.add(parent);
-            }
-            else {
-                list.add(0, parent);
-            }
-            parent = parent.parent;
-        }
-
-        return list;
+        return tree != null ? tree.getAncestors(treeNode, reverse) : Collections.emptyList();
     }
 
-    public void setSiblings(@NonNull SortedSet<PageRecord> siblings) {
-        this.siblings = Collections.unmodifiableSortedSet(siblings);
+    /**
+     * Sets the siblings of a root page, that must already be sorted by {@link #COMPARE_BY_NAME}.
+     */
+    public void setSiblings(@NonNull ImmutableList<PageRecord> siblings) {
+        this.siblings = siblings;
     }
 
     public boolean isIndex() {
         return parent == null && index;
     }
 
+    /**
+     * Returns the file name that was assigned by the {@link SlugRegistry}.
+     */
     public String getDynamicFilename() {
-        if (dynamicFilename != null) {
-            return dynamicFilename;
+        if (dynamicFilename == null) {
+            throw new IllegalStateException(this + ": no file name assigned");
         }
-        List<PageRecord> parents = getParents(true);
-        StringBuilder name = new StringBuilder();
-        appendNormalized(name, title);
-        if (!parents.isEmpty()) {
-            parents.forEach(p -> {
-                if (Character.isUpperCase(p.title.charAt(0))) {
-                    name.append("_-");
+        return dynamicFilename;
+    }
+
+    public String getPermanentFilename() {
+        return layout.getPermanentFilename(id);
+    }
+
+    void setOutputPath(@NonNull OutputLayout layout, @NonNull String filename) {
+        this.layout = layout;
+        this.dynamicFilename = filename;
+        this.linkPrefix = createLinkPrefix(filename);
+    }
+
+    private static String createLinkPrefix(String filename) {
+        StringBuilder prefix = new StringBuilder();
+        for (int i = filename.indexOf('/', ROOT_PREFIX.length()); i != -1; i = filename.indexOf('/', i + 1)) {
+            prefix.append("../");
+        }
+        return prefix.length() > 0 ? prefix.toString() : ROOT_PREFIX;
+    }
+
+    /**
+     * Returns a link from this page to a path relative to the output root.
+     */
+    public String linkTo(@NonNull String path) {
+        return linkPrefix + (path.startsWith(ROOT_PREFIX) ? path.substring(ROOT_PREFIX.length()) : path);
+    }
+
+    /**
+     * Makes relative links in the content, that are written relative to the output root, relative to the
+     * location of this page. This must happen before page references are replaced.
+     */
+    public void rebaseRelativeLinks() {
+        if (!ROOT_PREFIX.equals(linkPrefix)) {
+            rewriteRelativeLinks(this::linkTo);
+        }
+    }
+
+    /**
+     * Replaces the relative links in the content by the result of the rewrite function.
+     */
+    public void rewriteRelativeLinks(@NonNull UnaryOperator<String> rewrite) {
+        NodeVisitor visitor = new NodeVisitor() {
+            @Override
+            public void head(Node node, int depth) {
+                rewriteAttribute(node, "href", rewrite);
+                rewriteAttribute(node, "src", rewrite);
+                rewriteSourceSet(node, rewrite);
+            }
+
+            @Override
+            public void tail(Node node, int depth) {
+
+            }
+        };
+        article.traverse(visitor);
+        footer.traverse(visitor);
+    }
+
+    /**
+     * Passes the relative links in the content, that {@link #rewriteRelativeLinks(UnaryOperator)} would rewrite,
+     * to the consumer, without changing the content.
+     */
+    public void visitRelativeLinks(@NonNull Consumer<String> consumer) {
+        NodeVisitor visitor = new NodeVisitor() {
+            @Override
+            public void head(Node node, int depth) {
+                if (!(node instanceof Element)) {
+                    return;
                 }
-                else {
-                    name.append("_-_");
+                visitAttribute(node, "href", consumer);
+                visitAttribute(node, "src", consumer);
+                if (node.hasAttr("srcset")) {
+                    for (String candidate : node.attr("srcset").split(",")) {
+                        String trimmed = candidate.trim();
+                        int space = trimmed.indexOf(' ');
+                        String url = space == -1 ? trimmed : trimmed.substring(0, space);
+                        if (isRelativeUrl(url)) {
+                            consumer.accept(url);
+                        }
+                    }
                 }
-                appendNormalized(name, p.title);
-            });
-        }
-        if (name.length() > MAX_GENERATED_LENGTH) {
-            name.setLength(MAX_GENERATED_LENGTH);
+            }
+
+            @Override
+            public void tail(Node node, int depth) {
+
+            }
         };
-        name.append(".html");
-        int i = 0;
-        while (i < name.length() && name.charAt(i) == '_') {
-            i++;
+        article.traverse(visitor);
+        footer.traverse(visitor);
+    }
+
+    private static void visitAttribute(Node node, String attribute, Consumer<String> consumer) {
+        if (node.hasAttr(attribute)) {
+            String value = node.attr(attribute);
+            if (isRelativeUrl(value)) {
+                consumer.accept(value);
+            }
         }
-        name.delete(0,i);
-        name.insert(0, '/');
-        name.insert(0, '.');
-        dynamicFilename = name.toString();
+    }
 
-        return dynamicFilename;
+    private static void rewriteAttribute(Node node, String attribute, UnaryOperator<String> rewrite) {
+        if (node instanceof Element && node.hasAttr(attribute)) {
+            String value = node.attr(attribute);
+            if (isRelativeUrl(value)) {
+                String rewritten = rewrite.apply(value);
+                if (!value.equals(rewritten)) {
+                    node.attr(attribute, rewritten);
+                }
+            }
+        }
+    }
+
+    private static void rewriteSourceSet(Node node, UnaryOperator<String> rewrite) {
+        if (!(node instanceof Element) || !node.hasAttr("srcset")) {
+            return;
+        }
+        StringBuilder rewritten = new StringBuilder();
+        for (String candidate : node.attr("srcset").split(",")) {
+            String trimmed = candidate.trim();
+            int space = trimmed.indexOf(' ');
+            String url = space == -1 ? trimmed : trimmed.substring(0, space);
+            if (rewritten.length() > 0) {
+                rewritten.append(", ");
+            }
+            rewritten.append(isRelativeUrl(url) ? rewrite.apply(url) : url);
+            if (space != -1) {
+                rewritten.append(trimmed.substring(space));
+            }
+        }
+        node.attr("srcset", rewritten.toString());
+    }
+
+    /**
+     * Applies the update to the images in the article.
+     */
+    public void updateArticleImages(@NonNull Consumer<Element> update) {
+        article.select("img[src]").forEach(update);
+    }
+
+    static boolean isRelativeUrl(String url) {
+        return url != null && !url.isEmpty() && !url.startsWith("#") && !url.startsWith("/") && !URL_SCHEME_PATTERN.matcher(url).find();
     }
 
     public void writePage(@NonNull Writer writer, @NonNull Map<String, Object> cache) throws IOException {
-        addHead(cache);
-        addBody((String)cache.get(PAGE_COPYRIGHT));
+        boolean optimizeLoading = Boolean.TRUE.equals(cache.get(OPTIMIZE_LOADING));
+        addHead(cache, optimizeLoading);
+        addBody((String)cache.get(PAGE_COPYRIGHT), Boolean.TRUE.equals(cache.get(COMPACT_NAVIGATION)), optimizeLoading,
+                (NavigationFragments)cache.get(NAVIGATION_FRAGMENTS), (ChildIndexPages)cache.get(CHILD_INDEX));
+        if (optimizeLoading) {
+            lazyLoadArticleMedia();
+        }
+        StyleSheet styleSheet = (StyleSheet)cache.get(STYLE_SHEET);
+        if (styleSheet != null) {
+            styleSheet.inline(document, linkTo(getAssetPaths(cache).apply(STYLE_CSS)), this::linkTo);
+        }
 
         Document.OutputSettings outputSettings = document.outputSettings();
         outputSettings.charset(StandardCharsets.UTF_8);
         outputSettings.escapeMode(org.jsoup.nodes.Entities.EscapeMode.base);
-        writer.append(document.outerHtml());
+        if (Boolean.TRUE.equals(cache.get(MINIFY))) {
+            writer.append(HtmlMinifier.minify(document));
+        }
+        else {
+            writer.append(document.outerHtml());
+        }
+    }
+
+    /**
+     * Writes a page that redirects from the permanent file name to this page, for layouts where the
+     * permanent file is not in the same directory as the page.
+     */
+    public void writePermanentRedirect(@NonNull Writer writer) throws IOException {
+        String link = createLinkPrefix(getPermanentFilename()) + getDynamicFilename().substring(ROOT_PREFIX.length());
+        Document redirect = Jsoup.parse("<!DOCTYPE html><html></html>");
+        Element head = redirect.head();
+        head.appendElement("meta").attr("charset", "UTF-8");
+        head.appendElement("meta")
+                .attr("http-equiv", "refresh")
+                .attr("content", "0; url=" + link);
+        head.appendElement("link")
+                .attr("rel", "canonical")
+                .attr("href", link);
+        head.appendElement("title").text(generateTitleTrail());
+        redirect.body().appendElement("a")
+                .attr("href", link)
+                .text(getTitle());
+
+        redirect.outputSettings().charset(StandardCharsets.UTF_8);
+        writer.append(redirect.outerHtml());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Function<String, String> getAssetPaths(Map<String, Object> cache) {
+        return (Function<String, String>)cache.getOrDefault(ASSET_PATHS, Function.identity());
     }
 
-    private void addHead(@NonNull Map<String, Object> cache) {
+    /**
+     * Adds the head, where {@code optimizeLoading} adds connection and preload hints, defers local
+     * scripts and loads MathJax asynchronously.
+     */
+    private void addHead(@NonNull Map<String, Object> cache, boolean optimizeLoading) {
         Element head = document.head();
+        Function<String, String> assetPaths = getAssetPaths(cache);
+        String styleLink = linkTo(assetPaths.apply(STYLE_CSS));
 
         head.appendElement("meta").attr("charset", "UTF-8");
 
@@ -471,45 +714,91 @@ public class PageRecord {
                 .attr("name", "viewport")
                 .attr("content", "width=device-width, initial-scale=1.0, maximum-scale=2, minimum-scale=0.5");
 
-        long stamp = System.currentTimeMillis();
-
+        if (optimizeLoading) {
+            head.appendElement("link")
+                    .attr("rel", "preconnect")
+                    .attr("href", "https://fonts.googleapis.com");
+            head.appendElement("link")
+                    .attr("rel", "preconnect")
+                    .attr("href", "https://fonts.gstatic.com")
+                    .attr("crossorigin", "");
+            head.appendElement("link")
+                    .attr("rel", "preload")
+                    .attr("href", FONTS_CSS)
+                    .attr("as", "style");
+            if (!cache.containsKey(STYLE_SHEET)) {
+                head.appendElement("link")
+                        .attr("rel", "preload")
+                        .attr("href", styleLink)
+                        .attr("as", "style");
+            }
+        }
         head.appendElement("link")
                 .attr("rel", "stylesheet")
-                .attr("href", "https://fonts.googleapis.com/css?family=Open+Sans:400italic,600italic,400,600")
+                .attr("href", FONTS_CSS)
                 .attr("type", "text/css");
         head.appendElement("link")
                 .attr("rel", "stylesheet")
-                .attr("href", STYLE_CSS + "?stamp=" + stamp)
+                .attr("href", styleLink)
                 .attr("type", "text/css");
+        Object feedPath = cache.get(FEED_PATH);
+        if (feedPath != null) {
+            head.appendElement("link")
+                    .attr("rel", "alternate")
+                    .attr("type", "application/atom+xml")
+                    .attr("href", linkTo(feedPath.toString()));
+        }
         if (math) {
-            head.appendElement("script")
+            Element mathJax = head.appendElement("script")
                     .attr("type", "text/javascript")
-                    .attr("src", "https://cdnjs.cloudflare.com/ajax/libs/mathjax/2.7.1/MathJax.js?config=TeX-AMS-MML_HTMLorMML")
-                    .appendChild(new DataNode("MathJax.Hub.Config({displayAlign: \"left\", displayIndent: \"2ex\" });", ""));
+                    .attr("src", MATHJAX_JS);
+            if (optimizeLoading) {
+                mathJax.attr("async", "");
+            }
+            mathJax.appendChild(new DataNode("MathJax.Hub.Config({displayAlign: \"left\", displayIndent: \"2ex\" });"));
         }
-        head.appendElement("script")
+        Element util = head.appendElement("script")
                 .attr("type", "text/javascript")
-                .attr("src", "./emmef-util.js?stamp=" + stamp);
+                .attr("src", linkTo(assetPaths.apply(EMMEF_UTIL_JS)));
+        if (optimizeLoading) {
+            util.attr("defer", "");
+            // Deferred scripts run before DOMContentLoaded
+            head.appendElement("script")
+                    .attr("type", "text/javascript")
+                    .appendChild(new DataNode("document.addEventListener(\"DOMContentLoaded\", function() { EmmefUtil.init(); });"));
+        }
 
         head.appendElement("title").text(generateTitleTrail());
     }
 
-    private void addBody(String copyRight) {
+    /**
+     * Lets the browser load images and frames in the article when they are about to be scrolled into
+     * view, except the first ones, that are likely to be visible right away.
+     */
+    private void lazyLoadArticleMedia() {
+        int count = 0;
+        for (Element media : article.select("img, iframe")) {
+            if (media.tagName().equals("img") && !media.hasAttr("decoding")) {
+                media.attr("decoding", "async");
+            }
+            if (count++ >= EAGER_ARTICLE_MEDIA && !media.hasAttr("loading")) {
+                media.attr("loading", "lazy");
+            }
+        }
+    }
+
+    private void addBody(String copyRight, boolean compactNavigation, boolean optimizeLoading, NavigationFragments fragments, ChildIndexPages childIndex) {
         Element body = document.body();
-        body.attr("onload", "EmmefUtil.init();");
+        if (!optimizeLoading) {
+            body.attr("onload", "EmmefUtil.init();");
+        }
         body.appendChild(header);
         Element nav = header.appendElement("nav");
 
         List<PageRecord> parents = getParents(false);
         List<PageRecord> self = Collections.singletonList(this);
-        List<PageRecord> siblings = new ArrayList<>();
-        getSiblings().forEach(p -> {
-            if (p != this) {
-                siblings.add(p);
-            }
-        });
+        List<PageRecord> children = getChildren();
 
-        ArrayList<PageRecord> children = new ArrayList<>(getChildren());
         addPermaLink(nav);
         nav.appendElement("span")
                 .attr("onclick", "EmmefUtil.contrast()")
@@ -518,13 +807,27 @@ public class PageRecord {
 
 
         if (!parents.isEmpty()) {
-            writeLinks(null, nav, parents, "parents");
+            writeLinks(null, nav, parents, null, "parents", compactNavigation);
         }
-        writeLinks(this, nav, self, "current");
+        writeLinks(this, nav, self, null, "current", compactNavigation);
         if (!children.isEmpty()) {
-            writeLinks(null, nav, children, "children");
+            if (childIndex != null && children.size() > childIndex.getLimit()) {
+                writeWindow(nav, children, null, this, childIndex, "children", compactNavigation);
+            }
+            else {
+                writeLinks(null, nav, children, null, "children", compactNavigation);
+            }
+        }
+        List<PageRecord> siblings = getSiblings();
+        if (childIndex != null && siblings.size() > childIndex.getLimit()) {
+            writeWindow(nav, siblings, this, this.siblings != null ? null : parent, childIndex, "siblings", compactNavigation);
+        }
+        else if (fragments != null && siblings.size() >= NavigationFragments.MIN_LINKS) {
+            includeLinks(nav, fragments, siblings, "siblings", compactNavigation);
+        }
+        else {
+            writeLinks(null, nav, siblings, this, "siblings", compactNavigation);
         }
-        writeLinks(null, nav, siblings, "siblings");
 
         header.appendElement("div")
                 .attr("id", "article-title")
@@ -543,7 +846,7 @@ public class PageRecord {
 
         if (!duplicate) {
             nav.appendElement("a")
-                    .attr("href", id.toString() + ".html")
+                    .attr("href", linkTo(getPermanentFilename()))
                     .attr("class", imageStyles)
                     .attr("title", "Permanent link")
                     .text("" + Entities.ODOT);
@@ -557,49 +860,30 @@ public class PageRecord {
     }
 
     private String generateTitleTrail() {
-        return generateTitleTrail(true);
-    }
-
-    private String generateTitleTrail(boolean showTopmost) {
-        StringBuilder output = new StringBuilder();
-        output.append(getTitle());
-
-        PageRecord parent = getParent();
-        if (parent != null) {
-            output.append(Entities.NBSP).append(Entities.MDASH).append(" ");
-            parentTitle(output, parent, showTopmost);
-        }
-
-        return output.toString();
+        return tree != null ? tree.getTitleTrail(treeNode) : getTitle();
     }
 
     public String parentTitle(boolean showTopmost) {
-        if (parent != null) {
-            StringBuilder output = new StringBuilder();
-            parentTitle(output, parent, showTopmost);
-            return output.toString();
+        if (parent != null && tree != null) {
+            return tree.getPathTitle(parent.treeNode, showTopmost);
         }
         return "";
     }
 
-    private static void parentTitle(StringBuilder output, PageRecord page, boolean showTopmost) {
-        PageRecord parent = page.getParent();
-        if (parent != null) {
-            if (parent.parent != null || showTopmost) {
-                parentTitle(output, parent, showTopmost);
-                output.append(Entities.NBSP).append("/ ");
-            }
+    /**
+     * Writes links to the pages, that must be sorted by {@link #COMPARE_BY_NAME}, leaving out page {@code exclude}.
+     */
+    private void writeLinks(PageRecord self, Element nav, List<PageRecord> pages, PageRecord exclude, String baseClass, boolean compact) {
+        int excluded = exclude != null ? Collections.binarySearch(pages, exclude, COMPARE_BY_NAME) : -1;
+        if (excluded >= 0 && pages.get(excluded) != exclude) {
+            excluded = -1;
         }
-        output.append(page.getTitle());
-    }
-
-    private void writeLinks(PageRecord self, Element nav, List<PageRecord> pages, String baseClass) {
-        int size = pages.size();
+        int size = excluded >= 0 ? pages.size() - 1 : pages.size();
         if (size == 0) {
             return;
         }
         for (int i = 0; i < size; i++) {
-            PageRecord page = pages.get(i);
+            PageRecord page = pages.get(excluded >= 0 && i >= excluded ? i + 1 : i);
             boolean isFirst = i == 0;
             boolean isLast = i == size - 1;
             boolean isSelf = self != null && PageRecord.COMPARE_BY_NAME.compare(page, self) == 0;
@@ -607,64 +891,131 @@ public class PageRecord {
             if (isFirst) {
                 nav.appendElement("span").attr(
                         "class", createClasses(
-                                baseClass, "separator", true, false, false));
+                                baseClass, "separator", true, false, false, compact));
             }
             nav.appendElement("a")
-                    .attr("href", page.getDynamicFilename())
-                    .attr("class", createClasses(baseClass, "element", isFirst, isLast, isSelf))
+                    .attr("href", linkTo(page.getDynamicFilename()))
+                    .attr("class", createClasses(baseClass, "element", isFirst, isLast, isSelf, compact))
                     .text(page.getTitle());
 
             nav.appendElement("span").attr(
                     "class", createClasses(
-                            baseClass, "separator", false, isLast, false));
+                            baseClass, "separator", false, isLast, false, compact));
         }
     }
 
-    private String createClasses(String baseClass, String subClass, boolean isFirst, boolean isLast, boolean isSelf) {
+    /**
+     * Writes links to at most the limit of the index of pages, that must be sorted by {@link #COMPARE_BY_NAME},
+     * around page {@code exclude} or from the start, followed by a link to the page of the index that lists them.
+     * The pages are the children of {@code parent} or, if that is {@code null}, the root pages.
+     */
+    private void writeWindow(Element nav, List<PageRecord> pages, PageRecord exclude, PageRecord parent, ChildIndexPages index, String baseClass, boolean compact) {
+        int limit = index.getLimit();
+        int position = exclude != null ? Collections.binarySearch(pages, exclude, COMPARE_BY_NAME) : -1;
+        if (position >= 0 && pages.get(position) != exclude) {
+            position = -1;
+        }
+        int size = position >= 0 ? limit + 1 : limit;
+        int start = position >= 0 ? Math.max(0, Math.min(position - limit / 2, pages.size() - size)) : 0;
+        writeLinks(null, nav, pages.subList(start, start + size), exclude, baseClass, compact);
+        String filename = index.getFilename(parent, Math.max(position, start));
+        if (filename != null) {
+            nav.appendElement("a")
+                    .attr("href", linkTo(filename))
+                    .attr("class", createClasses(baseClass, "more", false, true, false, compact))
+                    .text("All " + pages.size());
+            nav.appendElement("span").attr(
+                    "class", createClasses(baseClass, "separator", false, true, false, compact));
+        }
+    }
+
+    /**
+     * Adds a placeholder for the shared links to the pages, including this page, that the navigation script
+     * replaces. Without scripts, the placeholder links to the parent that lists the same pages, or to the index.
+     */
+    private void includeLinks(Element nav, NavigationFragments fragments, List<PageRecord> pages, String baseClass, boolean compact) {
+        String path = fragments.getPath(pages, linkPrefix, () -> {
+            Document fragment = Document.createShell("");
+            fragment.outputSettings().prettyPrint(false).charset(StandardCharsets.UTF_8).escapeMode(org.jsoup.nodes.Entities.EscapeMode.base);
+            writeLinks(null, fragment.body(), pages, null, baseClass, compact);
+            return fragment.body().html();
+        });
+        int others = Collections.binarySearch(pages, this, COMPARE_BY_NAME) >= 0 ? pages.size() - 1 : pages.size();
+        Element include = nav.appendElement("span")
+                .attr("class", baseClass + "-include")
+                .attr("data-navigation", linkTo(path));
+        include.appendElement("span")
+                .attr("class", createClasses(baseClass, "separator", true, false, false, compact));
+        include.appendElement("a")
+                .attr("href", linkTo(parent != null ? parent.getDynamicFilename() : "./index.html"))
+                .attr("class", createClasses(baseClass, "element", true, true, false, compact))
+                .text(others + " other pages");
+        include.appendElement("span")
+                .attr("class", createClasses(baseClass, "separator", false, true, false, compact));
+        document.head().appendElement("script")
+                .attr("type", "text/javascript")
+                .attr("src", linkTo(NavigationFragments.SCRIPT))
+                .attr("defer", "");
+    }
+
+    /**
+     * Creates the classes for a navigation element. The compact scheme leaves out the classes that combine
+     * only two of base class, sub class and position, as well as the base class on its own.
+     */
+    private String createClasses(String baseClass, String subClass, boolean isFirst, boolean isLast, boolean isSelf, boolean compact) {
         StringBuilder classes = new StringBuilder();
 
-        classes.append(baseClass).append(" ").append(subClass).append(" ").append(baseClass).append("-").append(subClass);
+        if (compact) {
+            classes.append(subClass).append(" ").append(baseClass).append("-").append(subClass);
+        }
+        else {
+            classes.append(baseClass).append(" ").append(subClass).append(" ").append(baseClass).append("-").append(subClass);
+        }
         if (isFirst) {
-            addPositionClasses(classes, baseClass, subClass, "first");
+            addPositionClasses(classes, baseClass, subClass, "first", compact);
         }
         if (isLast) {
-            addPositionClasses(classes, baseClass, subClass, "last");
+            addPositionClasses(classes, baseClass, subClass, "last", compact);
         }
         if (!isFirst && !isLast) {
-            addPositionClasses(classes, baseClass, subClass, "inner");
+            addPositionClasses(classes, baseClass, subClass, "inner", compact);
         }
         if (isSelf) {
-            addPositionClasses(classes, baseClass, subClass, "self");
+            addPositionClasses(classes, baseClass, subClass, "self", compact);
         }
         return classes.toString();
     }
 
-    private StringBuilder addPositionClasses(StringBuilder classes, String baseClass, String subClass, String position) {
+    private StringBuilder addPositionClasses(StringBuilder classes, String baseClass, String subClass, String position, boolean compact) {
+        if (compact) {
+            return classes.append(" ").append(baseClass).append("-").append(subClass).append("-").append(position);
+        }
         return classes
                 .append(" ").append(baseClass).append("-").append(position)
                 .append(" ").append(subClass).append("-").append(position)
                 .append(" ").append(baseClass).append("-").append(subClass).append("-").append(position);
     }
 
-    private SortedSet<PageRecord> getSiblings() {
+    List<PageRecord> getSiblings() {
         if (siblings != null) {
             return siblings;
         }
         if (parent != null) {
             return parent.getChildren();
         }
-        return Collections.emptySortedSet();
+        return Collections.emptyList();
     }
 
-    private Element processReferences(Node rootNode, Multimap<UUID, Element> pageRefNodes, List<String> references) {
-        AtomicReference<Element> referenceList = new AtomicReference<>(footer.getElementById(REFERENCE_LIST));
-
+    /**
+     * Numbers the references below the root node in document order, appending new ones to the reference list
+     * and queueing newly cited notes.
+     */
+    private void processReferences(Node rootNode, Multimap<UUID, Element> pageRefNodes, Map<String, String> references, Deque<Element> citedNotes, AtomicReference<Element> referenceList) {
         NodeHelper.deepSearch(rootNode, Element.class, ANCHOR_REF, refNode -> {
             String referenceUrl = getReferenceValue(refNode, REF_SCHEME);
-            int idx = references.indexOf(referenceUrl);
-            String number;
+            String number = references.get(referenceUrl);
             String refId;
-            if (idx == -1) {
+            if (number == null) {
                 Element note = null;
                 if (referenceUrl.startsWith(NOTE_SCHEME)) {
                     String noteId = referenceUrl.substring(NOTE_SCHEME.length());
@@ -672,9 +1023,10 @@ public class PageRecord {
                     if (note == null) {
                         return;
                     }
+                    citedNotes.add(note);
                 }
-                references.add(referenceUrl);
-                number = Integer.toString(references.size());
+                number = Integer.toString(references.size() + 1);
+                references.put(referenceUrl, number);
                 refId = "scms_reference_" + number;
                 if (referenceList.get() == null) {
                     referenceList.set(
@@ -710,15 +1062,12 @@ public class PageRecord {
                     content.appendChild(note);
                 }
             } else {
-                number = Integer.toString(idx + 1);
                 refId = "scms_reference_" + number;
-
             }
             refNode.attr("href", "#" + refId);
             refNode.text(number);
             refNode.attr("class", "reference-ptr");
         });
-        return referenceList.get();
     }
 
     private void collectPageReferences(Node article, Multimap<UUID, Element> pageRefNodes) {
@@ -778,19 +1127,99 @@ public class PageRecord {
                 orderedChildren.add(p);
             }
         });
-        if (orderedChildren.isEmpty()) {
+        listArticles(orderedChildren);
+    }
+
+    /**
+     * Lists the summaries of the pages, in the given order, in the section with identifier
+     * {@value #LATEST_ARTICLE_ID}, if the page has one.
+     */
+    public void listArticles(@NonNull List<PageRecord> pages) {
+        if (latestArticlesElement == null || pages.isEmpty()) {
             return;
         }
         latestArticlesElement.tagName("div");
         this.latestArticlesElement.attr("class", "latest-articles");
-        orderedChildren.forEach((page) -> addArticle(this.latestArticlesElement, page));
+        pages.forEach((page) -> addArticle(this.latestArticlesElement, page));
     }
 
-    private void addArticle(Element articleList, PageRecord page) {
-        List<Node> s = page.ensureSummary();
-        if (s == null) {
+    /**
+     * Links the tags of this page to their listing pages, at the end of the article. The function returns
+     * the file name of the listing page for the key of a tag.
+     */
+    public void replaceTags(@NonNull Function<String, String> listingFilenames) {
+        if (tags.isEmpty()) {
             return;
         }
+        Element list = article.appendElement("div").attr("class", "tags");
+        for (String tag : tags) {
+            String filename = listingFilenames.apply(getTagKey(tag));
+            if (filename != null) {
+                list.appendElement("a")
+                        .attr("class", "tag")
+                        .attr("href", linkTo(filename))
+                        .text(tag);
+            }
+        }
+    }
+
+    /**
+     * Lists the related pages in the section with identifier {@value #RELATED_ARTICLE_ID} or, if the page has
+     * no such section, in a section at the end of the article.
+     */
+    public void replaceRelatedArticles(@NonNull List<PageRecord> relatedPages) {
+        if (relatedPages.isEmpty()) {
+            return;
+        }
+        Element related = relatedArticlesElement;
+        if (related == null) {
+            related = article.appendElement(RELATED_ARTICLE_ELEMENT);
+            related.appendElement("h2").attr("class", "related-articles-title").text("Related articles");
+        }
+        related.removeAttr("id");
+        related.attr("class", "related-articles");
+        for (PageRecord page : relatedPages) {
+            Element item = related.appendElement("div").attr("class", "related-articles-item");
+            item
+                    .appendElement("div")
+                            .attr("class", "related-article-title")
+                            .appendElement("a")
+                                    .attr("class", "related-article-link")
+                                    .attr("href", linkTo(page.getDynamicFilename()))
+                                    .text(page.getSummaryTitle());
+            List<Node> s = page.ensureSummary();
+            if (s != null && !s.isEmpty()) {
+                Element summary = item.appendElement("div").attr("class", "related-article-summary");
+                LocalToRelativeLinkVisitor visitor = new LocalToRelativeLinkVisitor(this, page);
+                for (Node n : s) {
+                    summary.appendChild(n.clone().traverse(visitor));
+                }
+            }
+        }
+    }
+
+    /**
+     * Lists the pages that link to this page, if it has a section with identifier {@value #BACKLINKS_ID}.
+     */
+    public void replaceBacklinks(@NonNull List<PageRecord> linkingPages) {
+        if (backlinksElement == null || linkingPages.isEmpty()) {
+            return;
+        }
+        backlinksElement.removeAttr("id");
+        backlinksElement.attr("class", "backlinks");
+        for (PageRecord page : linkingPages) {
+            backlinksElement
+                    .appendElement("div")
+                            .attr("class", "backlinks-item")
+                            .appendElement("a")
+                                    .attr("class", "backlink")
+                                    .attr("href", linkTo(page.getDynamicFilename()))
+                                    .text(page.getTitle());
+        }
+    }
+
+    private void addArticle(Element articleList, PageRecord page) {
+        List<Node> s = page.ensureSummary();
         Element item = articleList.appendElement("div");
         if (articleList.children().size() == 1) {
             item.attr("class", "latest-articles-item latest-articles-item-first");
@@ -798,7 +1227,7 @@ public class PageRecord {
         else {
             item.attr("class", "latest-articles-item latest-articles-item-subsequent");
         }
-        String categoryLink = page.parent != null ? page.parent.getDynamicFilename() : null;
+        String categoryLink = page.parent != null ? linkTo(page.parent.getDynamicFilename()) : null;
         Element categoryDiv = item
                 .appendElement("div")
                 .attr("class", "latest-article-category");
@@ -823,19 +1252,69 @@ public class PageRecord {
                         .attr("class", "latest-article-title")
                         .appendElement("a")
                                 .attr("class", "latest-article-link")
-                                .attr("href", page.getDynamicFilename())
+                                .attr("href", linkTo(page.getDynamicFilename()))
                                 .text(page.getSummaryTitle());
 
 //        Element summaryAndDate = item.appendElement("div").attr("class", "latest-article-content");
 
+        if (s == null || s.isEmpty()) {
+            return;
+        }
         Element summary = item
                 .appendElement("div").attr("class", "latest-article-summary");
+        LocalToRelativeLinkVisitor visitor = new LocalToRelativeLinkVisitor(this, page);
         for (Node n : s) {
-            summary.appendChild(n.clone());
+            summary.appendChild(n.clone().traverse(visitor));
         }
 
     }
 
+    /**
+     * Returns the text of the article without markup.
+     */
+    public String getArticleText() {
+        return article.text();
+    }
+
+    /**
+     * Creates a source document with only what other pages use of this page: its title, identifiers, index
+     * flag, tags, summary, the elements that can be referred to and the pages it refers to. Read with the
+     * dates of this page, the stub is the same page to other pages. Must be called before the page is processed.
+     */
+    public Document createStub() {
+        Document stub = Jsoup.parse("<!DOCTYPE html><html><head></head><body></body></html>");
+        Element head = stub.head();
+        head.appendElement("title").text(title);
+        head.appendElement("meta")
+                .attr("name", "scms-uuid")
+                .attr("value", id.toString());
+        head.appendElement("meta")
+                .attr("name", "scms-parent-uuid")
+                .attr("value", parentId != null ? parentId.toString() : "none");
+        if (index) {
+            head.appendElement("meta")
+                    .attr("name", "scms-is-index")
+                    .attr("value", "true");
+        }
+        if (!tags.isEmpty()) {
+            head.appendElement("meta")
+                    .attr("name", "scms-tags")
+                    .attr("value", String.join(", ", tags));
+        }
+        Element body = stub.body();
+        if (!summaryTitle.equals(title)) {
+            body.appendElement(SUMMARY_TITLE_ELEMENT).attr("id", SUMMARY_TITLE_ID).text(summaryTitle);
+        }
+        List<Node> summary = summarizeText();
+        if (summary != null) {
+            Element paragraph = body.appendElement(SUMMARY_ELEMENT).attr("id", SUMMARY_ID);
+            summary.forEach(paragraph::appendChild);
+        }
+        idContentMap.forEach((elementId, content) -> body.appendElement("h2").attr("id", elementId.toString()).text(content));
+        pageRefNodes.keySet().forEach((refId) -> body.appendElement("a").attr("href", PAGE_SCHEME + refId));
+        return stub;
+    }
+
     public List<Node> ensureSummary() {
         if (summary != null) {
             return summary;
@@ -859,26 +1338,18 @@ public class PageRecord {
         if (p == null) {
             return null;
         }
-        LocalToRelativeLinkVisitor visitor = new LocalToRelativeLinkVisitor();
         ArrayList<Node> summary = new ArrayList<>();
         for (Node child : p.childNodes()) {
-            summary.add(child.clone().traverse(visitor));
+            summary.add(child.clone());
         }
         return summary.isEmpty() ? Collections.emptyList() : summary;
     }
 
     private boolean isChildOf(PageRecord supposedParent) {
-        if (supposedParent == null) {
+        if (supposedParent == null || tree == null || supposedParent.tree != tree) {
             return false;
         }
-        PageRecord p = this.parent;
-        while (p != null) {
-            if (p.id.equals(supposedParent.id)) {
-                return true;
-            }
-            p = p.parent;
-        }
-        return false;
+        return tree.isAncestor(supposedParent.treeNode, treeNode);
     }
 
 
@@ -894,21 +1365,6 @@ public class PageRecord {
     }
 
 
-    private void appendNormalized(@NonNull StringBuilder output, @NonNull String name) {
-        name.chars().forEach(c -> {
-            char chr = (char)c;
-            if (chr <= ' '|| chr >= '\u007f' || reservedChars.indexOf(c) != -1) {
-                output.append('_');
-            }
-            else if (chr >= 'A' && chr <='Z') {
-                output.append('_').append((char)Character.toLowerCase(c));
-            }
-            else {
-                output.append(chr);
-            }
-        });
-    }
-
     private static UUID getPageRefId(Node pageRef, String scheme) {
         String refIdText = getReferenceValue(pageRef, scheme);
         UUID refId;
@@ -935,6 +1391,17 @@ public class PageRecord {
         }
     }
 
+    /**
+     * Creates a key whose natural order is that of {@link String#compareToIgnoreCase(String)} on the title.
+     */
+    private static String createSortKey(String title) {
+        char[] key = title.toCharArray();
+        for (int i = 0; i < key.length; i++) {
+            key[i] = Character.toLowerCase(Character.toUpperCase(key[i]));
+        }
+        return new String(key);
+    }
+
     private static String getTitle(Node head) {
         String title = getContent(head, TITLE);
         if (title == null || title.isEmpty()) {
@@ -970,6 +1437,33 @@ public class PageRecord {
         return value.isEmpty() ? null : value;
     }
 
+    /**
+     * Returns the comma separated tags of the page, without duplicates, where tags that only differ in case or
+     * white space are the same.
+     */
+    private static ImmutableList<String> getTags(Node head) {
+        String value = getMetaValue(head, META_TAGS);
+        if (value == null) {
+            return ImmutableList.of();
+        }
+        Set<String> keys = new HashSet<>();
+        ImmutableList.Builder<String> tags = ImmutableList.builder();
+        for (String tag : value.split(",")) {
+            String name = tag.trim().replaceAll("\\s+", " ");
+            if (!name.isEmpty() && keys.add(getTagKey(name))) {
+                tags.add(name);
+            }
+        }
+        return tags.build();
+    }
+
+    /**
+     * Returns the key that identifies a tag, regardless of case and white space.
+     */
+    public static String getTagKey(@NonNull String tag) {
+        return tag.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
     private static String getContent(Node head, Predicate<Element> predicate) {
         Element meta = NodeHelper.searchFirst(head, predicate);
         return meta != null ? meta.text() : null;
@@ -1012,7 +1506,18 @@ public class PageRecord {
         return predicate.test(element) ? element : null;
     }
 
-    private class LocalToRelativeLinkVisitor implements NodeVisitor {
+    /**
+     * Makes links in the summary of a page relative to the page that shows the summary.
+     */
+    private static class LocalToRelativeLinkVisitor implements NodeVisitor {
+        private final PageRecord host;
+        private final PageRecord page;
+
+        LocalToRelativeLinkVisitor(PageRecord host, PageRecord page) {
+            this.host = host;
+            this.page = page;
+        }
+
         @Override
         public void head(Node node, int depth) {
 
@@ -1028,11 +1533,16 @@ public class PageRecord {
                 return;
             }
             String href = e.attr("href");
-            if (href == null || !href.startsWith("#")) {
+            if (href == null) {
                 return;
             }
-            String newHref = getDynamicFilename() + href;
-            e.attr("href", newHref);
+            if (href.startsWith("#")) {
+                e.attr("href", host.linkTo(page.getDynamicFilename()) + href);
+            }
+            else if (isRelativeUrl(href)) {
+                String path = href.startsWith(page.linkPrefix) ? href.substring(page.linkPrefix.length()) : href;
+                e.attr("href", host.linkTo(path));
+            }
         }
     }
 }
@@ -0,0 +1,190 @@
+package org.emmef.cms.page;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+
+/**
+ * Immutable index of the page hierarchy, built once after parents have been assigned.
+ * <p>
+ * Pages are numbered in pre-order, so the subtree of a page occupies the interval
+ * {@code [index, last[index]]} and ancestor tests take constant time. Parent cycles are
+ * broken before numbering and hierarchy depth is not limited.
+ */
+@Slf4j
+public class SiteTree {
+    public static final int NO_PARENT = -1;
+    private static final String PATH_SEPARATOR = Entities.NBSP + "/ ";
+    private static final String TRAIL_SEPARATOR = "" + Entities.NBSP + Entities.MDASH + " ";
+
+    private final PageRecord[] pages;
+    private final int[] parents;
+    private final int[] depths;
+    private final int[] last;
+    private final List<ImmutableList<PageRecord>> ancestors;
+    private final String[] paths;
+    private final String[] pathsWithoutTopmost;
+    private final String[] titleTrails;
+
+    public static SiteTree build(@NonNull Collection<PageRecord> pages) {
+        breakCycles(pages);
+        pages.forEach(PageRecord::freezeChildren);
+        return new SiteTree(pages);
+    }
+
+    private SiteTree(Collection<PageRecord> input) {
+        int size = input.size();
+        pages = new PageRecord[size];
+        parents = new int[size];
+        depths = new int[size];
+        last = new int[size];
+        paths = new String[size];
+        pathsWithoutTopmost = new String[size];
+        titleTrails = new String[size];
+        List<ImmutableList<PageRecord>> ancestorList = new ArrayList<>(size);
+
+        List<PageRecord> roots = new ArrayList<>();
+        input.forEach((page) -> {
+            if (page.getParent() == null) {
+                roots.add(page);
+            }
+        });
+        roots.sort(PageRecord.COMPARE_BY_NAME);
+
+        Deque<PageRecord> stack = new ArrayDeque<>();
+        Deque<Integer> parentStack = new ArrayDeque<>();
+        for (int r = roots.size() - 1; r >= 0; r--) {
+            stack.push(roots.get(r));
+            parentStack.push(NO_PARENT);
+        }
+
+        int count = 0;
+        while (!stack.isEmpty()) {
+            PageRecord page = stack.pop();
+            int parent = parentStack.pop();
+            int node = count++;
+
+            pages[node] = page;
+            parents[node] = parent;
+            last[node] = node;
+            if (parent == NO_PARENT) {
+                depths[node] = 0;
+                ancestorList.add(ImmutableList.of());
+                paths[node] = page.getTitle();
+                pathsWithoutTopmost[node] = page.getTitle();
+            }
+            else {
+                depths[node] = depths[parent] + 1;
+                ancestorList.add(ImmutableList.<PageRecord>builder()
+                        .addAll(ancestorList.get(parent)).add(pages[parent]).build());
+                paths[node] = paths[parent] + PATH_SEPARATOR + page.getTitle();
+                pathsWithoutTopmost[node] = parents[parent] == NO_PARENT ?
+                        page.getTitle() : pathsWithoutTopmost[parent] + PATH_SEPARATOR + page.getTitle();
+            }
+            titleTrails[node] = parent == NO_PARENT ? page.getTitle() : page.getTitle() + TRAIL_SEPARATOR + paths[parent];
+            page.setTreeNode(this, node);
+
+            List<PageRecord> children = page.getChildren();
+            for (int c = children.size() - 1; c >= 0; c--) {
+                stack.push(children.get(c));
+                parentStack.push(node);
+            }
+        }
+        if (count != size) {
+            throw new IllegalStateException("Hierarchy contains " + (size - count) + " unreachable pages");
+        }
+        // Pre-order guarantees that descendants have higher indexes than their ancestors
+        for (int node = size - 1; node > 0; node--) {
+            int parent = parents[node];
+            if (parent != NO_PARENT) {
+                last[parent] = Math.max(last[parent], last[node]);
+            }
+        }
+        this.ancestors = ancestorList;
+    }
+
+    public int size() {
+        return pages.length;
+    }
+
+    public PageRecord getPage(int node) {
+        return pages[node];
+    }
+
+    public int getParent(int node) {
+        return parents[node];
+    }
+
+    public int getDepth(int node) {
+        return depths[node];
+    }
+
+    /**
+     * Returns whether {@code ancestor} is a strict ancestor of {@code node}.
+     */
+    public boolean isAncestor(int ancestor, int node) {
+        return ancestor < node && node <= last[ancestor];
+    }
+
+    /**
+     * Returns the ancestors of the node, topmost first or, when reversed, nearest first.
+     */
+    public List<PageRecord> getAncestors(int node, boolean reverse) {
+        ImmutableList<PageRecord> list = ancestors.get(node);
+        return reverse ? Lists.reverse(list) : list;
+    }
+
+    /**
+     * Returns the titles from the topmost ancestor down to the node, where the topmost ancestor
+     * is omitted if {@code showTopmost} is false and the node is not topmost itself.
+     */
+    public String getPathTitle(int node, boolean showTopmost) {
+        return showTopmost ? paths[node] : pathsWithoutTopmost[node];
+    }
+
+    public String getTitleTrail(int node) {
+        return titleTrails[node];
+    }
+
+    private static void breakCycles(Collection<PageRecord> pages) {
+        Map<PageRecord, Boolean> finished = new IdentityHashMap<>();
+        List<PageRecord> chain = new ArrayList<>();
+        Map<PageRecord, Integer> onChain = new IdentityHashMap<>();
+
+        for (PageRecord start : pages) {
+            PageRecord page = start;
+            while (page != null && !finished.containsKey(page)) {
+                Integer position = onChain.get(page);
+                if (position != null) {
+                    detachCycle(chain.subList(position, chain.size()));
+                    break;
+                }
+                onChain.put(page, chain.size());
+                chain.add(page);
+                page = page.getParent();
+            }
+            chain.forEach((p) -> finished.put(p, Boolean.TRUE));
+            chain.clear();
+            onChain.clear();
+        }
+    }
+
+    private static void detachCycle(List<PageRecord> cycle) {
+        PageRecord detach = cycle.get(0);
+        for (PageRecord page : cycle) {
+            if (page.getId().compareTo(detach.getId()) < 0) {
+                detach = page;
+            }
+        }
+        StringBuilder members = new StringBuilder();
+        cycle.forEach((page) -> members.append(" \"").append(page.getTitle()).append("\" [").append(page.getId()).append("]"));
+        log.error("Parent cycle between pages{}: page \"{}\" [{}] ({}) attached to root",
+                members, detach.getTitle(), detach.getId(), detach.getPath());
+
+        detach.getParent().removeChild(detach);
+        detach.setParent(null);
+    }
+}
@@ -0,0 +1,181 @@
+package org.emmef.cms.page;
+
+import com.google.common.collect.ImmutableMap;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Assigns every page a unique file name, once, after the hierarchy was created.
+ * <p>
+ * A file name consists of the normalized title of the page followed by the normalized titles of
+ * its parents, nearest first. That parent part is memoized per page, so each title is normalized
+ * only once. Pages that would get the same name are disambiguated in tree order, with the pages
+ * outside the tree last, by appending a sequence number.
+ * <p>
+ * With the {@link OutputLayout#HIERARCHICAL} layout, the name of a page consists of its own title only
+ * and it is placed in a directory that is named after its parent.
+ */
+@Slf4j
+public class SlugRegistry {
+    private static final String reservedChars = "|\\?*<:>+[]/";
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final String HTML_SUFFIX = ".html";
+    private static final int MAX_GENERATED_LENGTH = MAX_NAME_LENGTH - HTML_SUFFIX.length();
+    private static final String NAME_PREFIX = "./";
+    private static final String INDEX_FILENAME = NAME_PREFIX + "index" + HTML_SUFFIX;
+
+    private final ImmutableMap<String, PageRecord> pages;
+
+    private SlugRegistry(ImmutableMap<String, PageRecord> pages) {
+        this.pages = pages;
+    }
+
+    /**
+     * Assigns file names to all pages in the tree and to the pages outside of it, like duplicates.
+     */
+    public static SlugRegistry assign(@NonNull SiteTree tree, @NonNull Collection<PageRecord> outsideTree, @NonNull OutputLayout layout) {
+        int size = tree.size();
+        String[] normalized = new String[size];
+        IntStream.range(0, size).parallel().forEach((node) -> normalized[node] = normalize(tree.getPage(node).getTitle()));
+
+        Map<String, PageRecord> claimed = new LinkedHashMap<>();
+        if (layout == OutputLayout.HIERARCHICAL) {
+            String[] directories = new String[size];
+            for (int node = 0; node < size; node++) {
+                int parent = tree.getParent(node);
+                String directory = parent != SiteTree.NO_PARENT ? directories[parent] : NAME_PREFIX;
+                String filename = claim(claimed, tree.getPage(node), directory, createFilename(directory, normalized[node]), layout);
+                directories[node] = filename.substring(0, filename.length() - HTML_SUFFIX.length()) + "/";
+            }
+        }
+        else {
+            String[] suffixes = createParentSuffixes(tree, normalized);
+
+            String[] candidates = new String[size];
+            IntStream.range(0, size).parallel().forEach((node) -> {
+                int parent = tree.getParent(node);
+                candidates[node] = createFilename(NAME_PREFIX, parent != SiteTree.NO_PARENT ? normalized[node] + suffixes[parent] : normalized[node]);
+            });
+            for (int node = 0; node < size; node++) {
+                claim(claimed, tree.getPage(node), NAME_PREFIX, candidates[node], layout);
+            }
+        }
+
+        List<PageRecord> others = new ArrayList<>(outsideTree);
+        others.sort(PageRecord.COMPARE_BY_NAME.thenComparing((p1, p2) -> p1.getPath().toString().compareTo(p2.getPath().toString())));
+        String[] otherCandidates = others.parallelStream()
+                .map((page) -> createFilename(NAME_PREFIX, normalize(page.getTitle())))
+                .toArray(String[]::new);
+        for (int i = 0; i < otherCandidates.length; i++) {
+            claim(claimed, others.get(i), NAME_PREFIX, otherCandidates[i], layout);
+        }
+        return new SlugRegistry(ImmutableMap.copyOf(claimed));
+    }
+
+    public PageRecord getPage(String filename) {
+        return pages.get(filename);
+    }
+
+    public int size() {
+        return pages.size();
+    }
+
+    /**
+     * Creates the parent part of the names of the children of each page, level by level so that each
+     * level can reuse the suffixes of the previous one.
+     */
+    private static String[] createParentSuffixes(SiteTree tree, String[] normalized) {
+        int size = tree.size();
+        int maxDepth = 0;
+        for (int node = 0; node < size; node++) {
+            maxDepth = Math.max(maxDepth, tree.getDepth(node));
+        }
+        int[] levelStart = new int[maxDepth + 2];
+        for (int node = 0; node < size; node++) {
+            levelStart[tree.getDepth(node) + 1]++;
+        }
+        for (int depth = 1; depth < levelStart.length; depth++) {
+            levelStart[depth] += levelStart[depth - 1];
+        }
+        int[] byLevel = new int[size];
+        int[] fill = Arrays.copyOf(levelStart, levelStart.length);
+        for (int node = 0; node < size; node++) {
+            byLevel[fill[tree.getDepth(node)]++] = node;
+        }
+
+        String[] suffixes = new String[size];
+        for (int depth = 0; depth <= maxDepth; depth++) {
+            IntStream.range(levelStart[depth], levelStart[depth + 1]).parallel().forEach((i) -> {
+                int node = byLevel[i];
+                int parent = tree.getParent(node);
+                String title = tree.getPage(node).getTitle();
+                StringBuilder suffix = new StringBuilder();
+                suffix.append(Character.isUpperCase(title.charAt(0)) ? "_-" : "_-_").append(normalized[node]);
+                if (parent != SiteTree.NO_PARENT && suffix.length() < MAX_GENERATED_LENGTH) {
+                    suffix.append(suffixes[parent]);
+                }
+                if (suffix.length() > MAX_GENERATED_LENGTH) {
+                    suffix.setLength(MAX_GENERATED_LENGTH);
+                }
+                suffixes[node] = suffix.toString();
+            });
+        }
+        return suffixes;
+    }
+
+    private static String claim(Map<String, PageRecord> claimed, PageRecord page, String directory, String candidate, OutputLayout layout) {
+        String filename = candidate;
+        if (claimed.containsKey(filename) || INDEX_FILENAME.equals(filename) && !page.isIndex()) {
+            String base = candidate.substring(0, candidate.length() - HTML_SUFFIX.length());
+            int sequence = 2;
+            do {
+                String number = "-" + sequence++;
+                int maxBase = directory.length() + MAX_GENERATED_LENGTH - number.length();
+                filename = (base.length() > maxBase ? base.substring(0, maxBase) : base) + number + HTML_SUFFIX;
+            }
+            while (claimed.containsKey(filename));
+
+            PageRecord owner = claimed.get(candidate);
+            log.warn("Page \"{}\" [{}] ({}) has the same file name \"{}\" as {}: using \"{}\"",
+                    page.getTitle(), page.getId(), page.getPath(), candidate, owner != null ? owner : "the index", filename);
+        }
+        claimed.put(filename, page);
+        page.setOutputPath(layout, filename);
+        return filename;
+    }
+
+    private static String createFilename(String directory, String normalized) {
+        StringBuilder name = new StringBuilder(normalized);
+        if (name.length() > MAX_GENERATED_LENGTH) {
+            name.setLength(MAX_GENERATED_LENGTH);
+        }
+        name.append(HTML_SUFFIX);
+        int i = 0;
+        while (i < name.length() && name.charAt(i) == '_') {
+            i++;
+        }
+        name.delete(0, i);
+        name.insert(0, directory);
+        return name.toString();
+    }
+
+    private static String normalize(@NonNull String name) {
+        StringBuilder output = new StringBuilder(name.length() + 8);
+        for (int i = 0; i < name.length(); i++) {
+            char chr = name.charAt(i);
+            if (chr <= ' ' || chr >= '\u007f' || reservedChars.indexOf(chr) != -1) {
+                output.append('_');
+            }
+            else if (chr >= 'A' && chr <= 'Z') {
+                output.append('_').append(Character.toLowerCase(chr));
+            }
+            else {
+                output.append(chr);
+            }
+        }
+        return output.toString();
+    }
+}
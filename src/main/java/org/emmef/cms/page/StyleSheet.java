@@ -0,0 +1,355 @@
+package org.emmef.cms.page;
+
+import com.google.common.collect.ImmutableList;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.jsoup.nodes.DataNode;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Selector;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The rules of the site stylesheet, parsed once, to inline the rules that apply to a page in its head.
+ * <p>
+ * A rule applies if one of its selectors matches an element of the final page, where pseudo classes that
+ * depend on user interaction and pseudo elements are ignored. Selectors that cannot be evaluated count as
+ * matching. At-rules other than conditional groups, like {@code @font-face}, are always inlined. The
+ * complete stylesheet is still loaded, but without blocking rendering.
+ */
+@Slf4j
+public class StyleSheet {
+    private static final Pattern COMMENT = Pattern.compile("/\\*.*?\\*/", Pattern.DOTALL);
+    private static final Pattern IMPORT = Pattern.compile("^@import\\s+(?:url\\(\\s*)?[\"']?([^\"')\\s]+)[\"']?\\s*\\)?\\s*([^;]*)$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern URL = Pattern.compile("url\\(\\s*([\"']?)([^\"')]+)\\1\\s*\\)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern LINE_BREAKS = Pattern.compile("\\s*[\\r\\n\\t]\\s*");
+    private static final Pattern PRINT_MEDIA = Pattern.compile("^@media\\s+print$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern PSEUDO = Pattern.compile("::?([a-zA-Z-]+)(\\([^)]*\\))?");
+    private static final Set<String> EVALUATED_PSEUDO_CLASSES = new HashSet<>(Arrays.asList(
+            "not", "has", "is", "root", "empty", "first-child", "last-child", "only-child", "first-of-type",
+            "last-of-type", "only-of-type", "nth-child", "nth-last-child", "nth-of-type", "nth-last-of-type"));
+
+    private final String href;
+    private final ImmutableList<Rule> rules;
+    private final BitSet used = new BitSet();
+
+    private StyleSheet(String href, ImmutableList<Rule> rules) {
+        this.href = href;
+        this.rules = rules;
+    }
+
+    /**
+     * Reads the stylesheet with link {@code href} from the source, including the stylesheets it imports,
+     * or returns {@code null} if it cannot be read.
+     */
+    public static StyleSheet read(@NonNull Function<String, Path> source, @NonNull String href) {
+        List<Rule> rules = new ArrayList<>();
+        if (!readRules(source, normalize(URI.create(href)), ImmutableList.of(), rules, new HashSet<>())) {
+            return null;
+        }
+        log.info("Read {} rules from stylesheet {}", rules.size(), href);
+        return new StyleSheet(href, ImmutableList.copyOf(rules));
+    }
+
+    /**
+     * Inlines the rules that apply to the document and changes the link to the stylesheet, that has
+     * href {@code link}, to load without blocking rendering.
+     */
+    public void inline(@NonNull Document document, @NonNull String link, @NonNull UnaryOperator<String> linkTo) {
+        Element stylesheet = null;
+        for (Element element : document.head().select("link[rel=stylesheet]")) {
+            if (link.equals(element.attr("href"))) {
+                stylesheet = element;
+            }
+        }
+        if (stylesheet == null) {
+            log.warn("Page has no link to stylesheet {}", href);
+            return;
+        }
+        BitSet matched = new BitSet(rules.size());
+        for (int i = 0; i < rules.size(); i++) {
+            if (rules.get(i).matches(document)) {
+                matched.set(i);
+            }
+        }
+        synchronized (used) {
+            used.or(matched);
+        }
+
+        StringBuilder css = new StringBuilder();
+        List<String> open = ImmutableList.of();
+        for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1)) {
+            Rule rule = rules.get(i);
+            if (rule.isPrintOnly()) {
+                continue;
+            }
+            int common = 0;
+            while (common < open.size() && common < rule.conditions.size() && open.get(common).equals(rule.conditions.get(common))) {
+                common++;
+            }
+            for (int close = open.size(); close > common; close--) {
+                css.append('}');
+            }
+            for (int condition = common; condition < rule.conditions.size(); condition++) {
+                css.append(rule.conditions.get(condition)).append('{');
+            }
+            open = rule.conditions;
+            css.append(rule.text);
+        }
+        for (int close = open.size(); close > 0; close--) {
+            css.append('}');
+        }
+        String inlined = rebase(css.toString(), linkTo);
+
+        stylesheet.before(new Element("style").appendChild(new DataNode(inlined)));
+        stylesheet.attr("rel", "preload")
+                .attr("as", "style")
+                .attr("onload", "this.onload=null;this.rel='stylesheet'");
+        stylesheet.after(new Element("noscript").appendChild(new Element("link")
+                .attr("rel", "stylesheet")
+                .attr("href", link)));
+    }
+
+    /**
+     * Logs the rules that did not apply to any of the pages that were inlined.
+     */
+    public void reportUnused() {
+        int unused = 0;
+        synchronized (used) {
+            for (int i = used.nextClearBit(0); i < rules.size(); i = used.nextClearBit(i + 1)) {
+                Rule rule = rules.get(i);
+                if (rule.selectors.isEmpty()) {
+                    continue;
+                }
+                unused++;
+                log.warn("Stylesheet rule \"{}\" from {} is not used on any page", String.join(", ", rule.selectors), rule.origin);
+            }
+        }
+        log.info("Stylesheet {} has {} rules that are not used on any page", href, unused);
+    }
+
+    private static boolean readRules(Function<String, Path> source, String href, ImmutableList<String> conditions, List<Rule> rules, Set<String> visited) {
+        if (!visited.add(href)) {
+            return true;
+        }
+        Path file = source.apply(href);
+        if (file == null) {
+            log.warn("Stylesheet {} not found in source", href);
+            return false;
+        }
+        String css;
+        try {
+            css = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            log.warn("Cannot read stylesheet {}: {}", href, e.getMessage());
+            return false;
+        }
+        URI base = URI.create(href);
+        new Parser(source, href, COMMENT.matcher(css).replaceAll(""), rules, visited)
+                .parseBlock(conditions, base);
+        return true;
+    }
+
+    /**
+     * Rewrites relative URLs in the stylesheet to be relative to the source root, so they can be
+     * made relative to the page that the rules are inlined in.
+     */
+    private static String resolveUrls(String declarations, URI base) {
+        Matcher matcher = URL.matcher(declarations);
+        StringBuffer output = new StringBuffer();
+        while (matcher.find()) {
+            String url = matcher.group(2).trim();
+            if (PageRecord.isRelativeUrl(url)) {
+                url = PageRecord.ROOT_PREFIX + normalize(base.resolve(url));
+            }
+            matcher.appendReplacement(output, Matcher.quoteReplacement("url(" + url + ")"));
+        }
+        matcher.appendTail(output);
+        return output.toString();
+    }
+
+    private static String rebase(String css, UnaryOperator<String> linkTo) {
+        Matcher matcher = URL.matcher(css);
+        StringBuffer output = new StringBuffer();
+        while (matcher.find()) {
+            String url = matcher.group(2);
+            if (url.startsWith(PageRecord.ROOT_PREFIX)) {
+                url = linkTo.apply(url);
+            }
+            matcher.appendReplacement(output, Matcher.quoteReplacement("url(" + url + ")"));
+        }
+        matcher.appendTail(output);
+        return output.toString();
+    }
+
+    private static String normalize(URI uri) {
+        String path = uri.normalize().toString();
+        return path.startsWith(PageRecord.ROOT_PREFIX) ? path.substring(PageRecord.ROOT_PREFIX.length()) : path;
+    }
+
+    /**
+     * Converts a selector to one that jsoup can evaluate, leaving out pseudo classes and elements that
+     * cannot be evaluated on a static document.
+     */
+    static String toStaticSelector(String selector) {
+        Matcher matcher = PSEUDO.matcher(selector);
+        StringBuffer output = new StringBuffer();
+        while (matcher.find()) {
+            boolean element = matcher.group().startsWith("::");
+            if (!element && EVALUATED_PSEUDO_CLASSES.contains(matcher.group(1).toLowerCase())) {
+                matcher.appendReplacement(output, Matcher.quoteReplacement(matcher.group()));
+                continue;
+            }
+            int start = matcher.start();
+            char previous = start > 0 ? selector.charAt(start - 1) : ' ';
+            boolean standalone = Character.isWhitespace(previous) || previous == '>' || previous == '+' || previous == '~' || previous == '(';
+            matcher.appendReplacement(output, standalone ? "*" : "");
+        }
+        matcher.appendTail(output);
+        String result = output.toString().trim();
+        return result.isEmpty() ? "*" : result;
+    }
+
+    private static class Rule {
+        private final ImmutableList<String> conditions;
+        private final ImmutableList<String> selectors;
+        private final ImmutableList<String> staticSelectors;
+        private final String text;
+        private final String origin;
+
+        Rule(ImmutableList<String> conditions, ImmutableList<String> selectors, String text, String origin) {
+            this.conditions = conditions;
+            this.selectors = selectors;
+            this.text = LINE_BREAKS.matcher(text).replaceAll(" ");
+            this.origin = origin;
+            ImmutableList.Builder<String> builder = ImmutableList.builder();
+            selectors.forEach((selector) -> builder.add(toStaticSelector(selector)));
+            this.staticSelectors = builder.build();
+        }
+
+        boolean isPrintOnly() {
+            return conditions.stream().anyMatch((condition) -> PRINT_MEDIA.matcher(condition).matches());
+        }
+
+        boolean matches(Document document) {
+            if (selectors.isEmpty()) {
+                return true;
+            }
+            for (String selector : staticSelectors) {
+                try {
+                    if (document.selectFirst(selector) != null) {
+                        return true;
+                    }
+                }
+                catch (Selector.SelectorParseException e) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Parser {
+        private final Function<String, Path> source;
+        private final String origin;
+        private final String css;
+        private final List<Rule> rules;
+        private final Set<String> visited;
+        private int position = 0;
+
+        Parser(Function<String, Path> source, String origin, String css, List<Rule> rules, Set<String> visited) {
+            this.source = source;
+            this.origin = origin;
+            this.css = css;
+            this.rules = rules;
+            this.visited = visited;
+        }
+
+        void parseBlock(ImmutableList<String> conditions, URI base) {
+            while (position < css.length()) {
+                int end = nextOf("{;}");
+                String prelude = css.substring(position, end).trim();
+                if (end == css.length()) {
+                    position = end;
+                    return;
+                }
+                char terminator = css.charAt(end);
+                position = end + 1;
+                if (terminator == '}') {
+                    return;
+                }
+                if (terminator == ';') {
+                    statement(prelude, conditions, base);
+                }
+                else if (prelude.startsWith("@media") || prelude.startsWith("@supports")) {
+                    parseBlock(ImmutableList.<String>builder().addAll(conditions).add(prelude).build(), base);
+                }
+                else if (prelude.startsWith("@")) {
+                    int start = position;
+                    skipBlock();
+                    String body = css.substring(start, position);
+                    rules.add(new Rule(conditions, ImmutableList.of(), prelude + "{" + resolveUrls(body, base), origin));
+                }
+                else {
+                    int start = position;
+                    skipBlock();
+                    String body = css.substring(start, position).trim();
+                    ImmutableList.Builder<String> selectors = ImmutableList.builder();
+                    for (String selector : prelude.split(",")) {
+                        if (!selector.trim().isEmpty()) {
+                            selectors.add(selector.trim());
+                        }
+                    }
+                    rules.add(new Rule(conditions, selectors.build(), prelude + "{" + resolveUrls(body, base), origin));
+                }
+            }
+        }
+
+        private void statement(String prelude, ImmutableList<String> conditions, URI base) {
+            Matcher matcher = IMPORT.matcher(prelude);
+            if (matcher.matches() && PageRecord.isRelativeUrl(matcher.group(1))) {
+                ImmutableList<String> importConditions = matcher.group(2).trim().isEmpty() ? conditions :
+                        ImmutableList.<String>builder().addAll(conditions).add("@media " + matcher.group(2).trim()).build();
+                readRules(source, normalize(base.resolve(matcher.group(1))), importConditions, rules, visited);
+            }
+            else if (!prelude.isEmpty() && !prelude.toLowerCase().startsWith("@charset")) {
+                log.debug("Stylesheet statement \"{}\" in {} is not inlined", prelude, origin);
+            }
+        }
+
+        private int nextOf(String characters) {
+            for (int i = position; i < css.length(); i++) {
+                if (characters.indexOf(css.charAt(i)) != -1) {
+                    return i;
+                }
+            }
+            return css.length();
+        }
+
+        /**
+         * Skips to just after the brace that closes the block that the position is in.
+         */
+        private void skipBlock() {
+            int depth = 1;
+            while (position < css.length() && depth > 0) {
+                char c = css.charAt(position++);
+                if (c == '{') {
+                    depth++;
+                }
+                else if (c == '}') {
+                    depth--;
+                }
+            }
+        }
+    }
+}
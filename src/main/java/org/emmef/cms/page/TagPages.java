@@ -0,0 +1,145 @@
+package org.emmef.cms.page;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.jsoup.nodes.Document;
+
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Listing pages for the tags that pages declare in their {@code scms-tags} meta element.
+ * <p>
+ * The inverted index from tag to pages is built in one pass over the pages in the order they are listed in,
+ * so the list of every tag is in that order without sorting it and the work is linear in the number of tags
+ * on pages, whatever the number of distinct tags. Tags with more than {@value #PAGE_SIZE} pages are listed
+ * over several pages, named {@code ./tags/<tag>.html}, {@code ./tags/<tag>.2.html} and so on.
+ */
+@Slf4j
+public class TagPages {
+    public static final int PAGE_SIZE = 20;
+    private static final String DIRECTORY = "./tags/";
+    private static final String HTML_SUFFIX = ".html";
+    private static final int MAX_NAME_LENGTH = 200;
+
+    private final ImmutableList<PageRecord> listings;
+    private final ImmutableMap<String, String> filenames;
+
+    private TagPages(ImmutableList<PageRecord> listings, ImmutableMap<String, String> filenames) {
+        this.listings = listings;
+        this.filenames = filenames;
+    }
+
+    /**
+     * Creates the listing pages for the tags on the pages, that must be in the order they should be listed in.
+     * The navigation of the listing pages shows the root pages. Listing pages do not take file names of pages.
+     */
+    public static TagPages create(@NonNull List<PageRecord> orderedPages, @NonNull SlugRegistry slugs, @NonNull OutputLayout layout) {
+        Map<String, Tag> index = new TreeMap<>();
+        List<PageRecord> roots = new ArrayList<>();
+        for (PageRecord page : orderedPages) {
+            for (String name : page.getTags()) {
+                index.computeIfAbsent(PageRecord.getTagKey(name), (key) -> new Tag(name)).pages.add(page);
+            }
+            if (page.getParentId() == null) {
+                roots.add(page);
+            }
+        }
+        if (index.isEmpty()) {
+            return new TagPages(ImmutableList.of(), ImmutableMap.of());
+        }
+
+        Path rootPath = orderedPages.get(0).getRootPath();
+        ImmutableList<PageRecord> siblings = ImmutableList.sortedCopyOf(PageRecord.COMPARE_BY_NAME, roots);
+        Set<String> claimed = new HashSet<>();
+        ImmutableList.Builder<PageRecord> listings = ImmutableList.builder();
+        ImmutableMap.Builder<String, String> filenames = ImmutableMap.builder();
+        index.forEach((key, tag) -> {
+            int count = (tag.pages.size() + PAGE_SIZE - 1) / PAGE_SIZE;
+            String name = claim(claimed, slugs, normalize(key), count);
+            for (int number = 1; number <= count; number++) {
+                List<PageRecord> pages = tag.pages.subList((number - 1) * PAGE_SIZE, Math.min(number * PAGE_SIZE, tag.pages.size()));
+                String filename = createFilename(name, number);
+                Document document = ListingPages.createDocument(
+                        "scms-tag:" + key + (number > 1 ? ":" + number : ""),
+                        count > 1 ? "Tag: " + tag.name + " (" + number + "/" + count + ")" : "Tag: " + tag.name,
+                        pages);
+                document.body().appendElement(PageRecord.LATEST_ARTICLE_ELEMENT).attr("id", PageRecord.LATEST_ARTICLE_ID);
+                ListingPages.addPagination(document.body(), "tag-pagination", (page) -> createFilename(name, page), number, count, "Newer", "Older");
+                PageRecord listing = ListingPages.createPage(document, rootPath, filename, siblings, layout);
+                listing.listArticles(pages);
+                listings.add(listing);
+            }
+            filenames.put(key, createFilename(name, 1));
+        });
+        TagPages result = new TagPages(listings.build(), filenames.build());
+        log.info("Created {} listing pages for {} tags", result.listings.size(), index.size());
+        return result;
+    }
+
+    /**
+     * Returns the listing pages, that still have to be written.
+     */
+    public List<PageRecord> getListings() {
+        return listings;
+    }
+
+    /**
+     * Returns the file name of the first listing page of a tag key, or {@code null} if no page has the tag.
+     */
+    public String getFilename(@NonNull String key) {
+        return filenames.get(key);
+    }
+
+    private static String createFilename(String name, int number) {
+        return DIRECTORY + name + (number > 1 ? "." + number : "") + HTML_SUFFIX;
+    }
+
+    private static String claim(Set<String> claimed, SlugRegistry slugs, String name, int count) {
+        String candidate = name;
+        for (int sequence = 1; !isFree(slugs, candidate, count) || !claimed.add(candidate); sequence++) {
+            candidate = name + "-" + sequence;
+        }
+        return candidate;
+    }
+
+    private static boolean isFree(SlugRegistry slugs, String name, int count) {
+        for (int number = 1; number <= count; number++) {
+            if (slugs.getPage(createFilename(name, number)) != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Keeps ASCII letters and digits and replaces every run of other characters by a single dash.
+     */
+    private static String normalize(String key) {
+        StringBuilder output = new StringBuilder(key.length());
+        for (int i = 0; i < key.length() && output.length() < MAX_NAME_LENGTH; i++) {
+            char chr = key.charAt(i);
+            if (chr >= 'a' && chr <= 'z' || chr >= '0' && chr <= '9') {
+                output.append(chr);
+            }
+            else if (output.length() > 0 && output.charAt(output.length() - 1) != '-') {
+                output.append('-');
+            }
+        }
+        while (output.length() > 0 && output.charAt(output.length() - 1) == '-') {
+            output.setLength(output.length() - 1);
+        }
+        return output.length() > 0 ? output.toString() : "tag";
+    }
+
+    private static class Tag {
+        private final String name;
+        private final List<PageRecord> pages = new ArrayList<>();
+
+        Tag(String name) {
+            this.name = name;
+        }
+    }
+}
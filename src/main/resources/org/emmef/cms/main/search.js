@@ -0,0 +1,94 @@
+/*
+ * Queries the static search index that is written next to this script, loading only the shards of the
+ * words in the query.
+ *
+ *     EmmefSearch.search("some words").then(function (results) { ... });
+ *
+ * Results are objects with url, title and score, best first, with URLs relative to the site root. Pages
+ * must contain every word, where the last word also matches longer terms, so that results appear while
+ * typing.
+ */
+var EmmefSearch = (function () {
+    var PREFIX_LENGTH = 2;
+    var MIN_TERM_LENGTH = 2;
+    var MAX_TERM_LENGTH = 40;
+    var base = document.currentScript ? document.currentScript.src.replace(/[^\/]*$/, '') : 'search/';
+    var loaded = {};
+
+    function load(name, empty) {
+        if (!loaded[name]) {
+            loaded[name] = fetch(base + name + '.json')
+                .then(function (response) { return response.ok ? response.json() : empty; })
+                .catch(function () { return empty; });
+        }
+        return loaded[name];
+    }
+
+    function tokenize(text) {
+        return text.normalize('NFD').replace(/\p{Mn}/gu, '').toLowerCase().split(/[^\p{L}\p{Nd}]+/u)
+            .filter(function (term) { return term.length >= MIN_TERM_LENGTH && term.length <= MAX_TERM_LENGTH; });
+    }
+
+    function shardOf(term) {
+        var prefix = term.substring(0, PREFIX_LENGTH);
+        if (/^[a-z0-9]+$/.test(prefix)) {
+            return prefix;
+        }
+        var name = '_';
+        for (var i = 0; i < prefix.length; i++) {
+            name += ('000' + prefix.charCodeAt(i).toString(16)).slice(-4);
+        }
+        return name;
+    }
+
+    function score(documentCount, postings, scores) {
+        var idf = Math.log(1 + documentCount * 2 / postings.length);
+        for (var i = 0; i < postings.length; i += 2) {
+            scores[postings[i]] = (scores[postings[i]] || 0) + postings[i + 1] * idf;
+        }
+    }
+
+    function search(query) {
+        var terms = tokenize(query);
+        if (!terms.length) {
+            return Promise.resolve([]);
+        }
+        var shards = terms.map(function (term) { return load(shardOf(term), {}); });
+        return Promise.all([load('documents', [])].concat(shards)).then(function (results) {
+            var documents = results[0];
+            var scores = null;
+            terms.forEach(function (term, index) {
+                var shard = results[index + 1];
+                var matches = {};
+                if (index === terms.length - 1) {
+                    Object.keys(shard).forEach(function (candidate) {
+                        if (candidate.indexOf(term) === 0) {
+                            score(documents.length, shard[candidate], matches);
+                        }
+                    });
+                }
+                else if (shard.hasOwnProperty(term)) {
+                    score(documents.length, shard[term], matches);
+                }
+                if (scores !== null) {
+                    Object.keys(matches).forEach(function (document) {
+                        matches[document] = document in scores ? matches[document] + scores[document] : undefined;
+                    });
+                }
+                scores = {};
+                Object.keys(matches).forEach(function (document) {
+                    if (matches[document] !== undefined) {
+                        scores[document] = matches[document];
+                    }
+                });
+            });
+            return Object.keys(scores)
+                .map(function (document) {
+                    return {url: documents[document][0], title: documents[document][1], score: scores[document]};
+                })
+                .sort(function (a, b) { return b.score - a.score; });
+        });
+    }
+
+    return {search: search, tokenize: tokenize};
+})();
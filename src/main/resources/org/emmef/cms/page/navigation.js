@@ -0,0 +1,44 @@
+/*
+ * Replaces each navigation placeholder by the shared links in the file that its data-navigation attribute
+ * refers to, leaving out the link to the current page. Without scripts, or if the file cannot be loaded, the
+ * placeholder keeps its link to a page that lists the same pages.
+ */
+(function () {
+    function include(placeholder) {
+        var here = location.href.replace(/#.*$/, '');
+        fetch(placeholder.getAttribute('data-navigation'))
+            .then(function (response) {
+                if (!response.ok) {
+                    throw new Error(response.status);
+                }
+                return response.text();
+            })
+            .then(function (html) {
+                var template = document.createElement('template');
+                template.innerHTML = html;
+                var links = template.content.querySelectorAll('a');
+                for (var i = 0; i < links.length; i++) {
+                    if (new URL(links[i].getAttribute('href'), location.href).href === here) {
+                        var separator = links[i].nextElementSibling;
+                        if (separator && separator.tagName === 'SPAN') {
+                            separator.parentNode.removeChild(separator);
+                        }
+                        links[i].parentNode.removeChild(links[i]);
+                    }
+                }
+                placeholder.parentNode.replaceChild(template.content, placeholder);
+            })
+            .catch(function () {});
+    }
+
+    function init() {
+        Array.prototype.forEach.call(document.querySelectorAll('[data-navigation]'), include);
+    }
+
+    if (document.readyState === 'loading') {
+        document.addEventListener('DOMContentLoaded', init);
+    }
+    else {
+        init();
+    }
+})();